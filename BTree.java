@@ -1,57 +1,43 @@
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Arrays;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
 
 
-public class BTree {
+public class BTree implements KmerSink, KmerBatchSink, KmerIndex {
+
+	private static final int WRITE_BUFFER_SIZE = 16; //dirty nodes held back when there is no cache
+	private static final int MAX_LEVELS = 64;
+	private static final int DEFAULT_PAGE_SIZE = 4096; //the degree without a page size fills this much
 
 	private int t;
-	private RandomAccessFile file;
+	private int nodeSize;
+	private BTreeHeader header;
+	private NodeFormat format;
+	private NodeStore store;
 	private BTreeNode root;
 	private int sequenceLength;
 	private Cache cache;
+	private PinnedTier pinned; //internal nodes kept resident apart from the cache
+	private int height; //number of levels, 1 while the root is a leaf
+	private int readAhead; //leaves a cursor reads at once
+	private BTreeMetrics metrics; //null unless the config asks for metrics
+	private long[] decodedKeys; //nodes that never change are decoded here, then trimmed
+	private int[] decodedFrequencies;
+	private int[] decodedChildren;
+	private String fileName; //reopened as a BTreeReader to scan on several threads
+	private BTreeConfig config;
 
 	/**
 	 * @param sequenceString string to be converted
 	 *            
-	 * @return the string represented in long form
+	 * @return the string represented in long form, canonical if the tree is
 	 */
 	private long stringToLong(String sequenceString) {
-		if (sequenceString.length() != sequenceLength) {
-			throw new BTreeException("String");
-		}
-		long sequenceLong = 0;
-		for (int i = 0; i < sequenceString.length(); i++) {
-
-			sequenceLong = sequenceLong << 2;
-			char sequenceChar = sequenceString.charAt(i);
-
-			if (sequenceChar == 'a' || sequenceChar == 'A') {
-				sequenceLong = sequenceLong | 0x0L;
-			}
-
-			else if (sequenceChar == 't' || sequenceChar == 'T') {
-				sequenceLong = sequenceLong | 0x3L;
-			} 
-
-			else if (sequenceChar == 'c' || sequenceChar == 'C') {
-				sequenceLong = sequenceLong | 0x1L;
-			} 
-
-			else if (sequenceChar == 'g' || sequenceChar == 'G') {
-				sequenceLong = sequenceLong | 0x2L;
-			} 
-
-			else {
-				throw new BTreeException("Unexpected character: " + sequenceChar);
-			}
-		}
-		return sequenceLong;
+		KmerEncoder.checkLength(sequenceString, sequenceLength);
+		long sequence = KmerEncoder.encode(sequenceString);
+		return header.isCanonical() ? KmerEncoder.canonical(sequence, sequenceLength) : sequence;
 	}
 
 	/**
@@ -63,23 +49,32 @@ public class BTree {
 	 * @param fileName name of the file
 	 */
 	public BTree(int t, int sequenceLength, int cacheSize, String fileName) {
+		this(t, sequenceLength, fileName, BTreeConfig.withCache(cacheSize));
+	}
+
+	/**
+	 * Creates new BTree for the given file
+	 * 
+	 * @param t degree of the tree
+	 * @param sequenceLength the length of the sequence
+	 * @param fileName name of the file
+	 * @param config cache and storage settings
+	 */
+	public BTree(int t, int sequenceLength, String fileName, BTreeConfig config) {
 		this.t = t;
 		this.sequenceLength = sequenceLength;
-
-		if (cacheSize == 0) {
-			cache = null;	
-		} 
-
-		else if (cacheSize > 0) {
-			cache = new Cache(cacheSize);
-		} 
-
-		else {
-			throw new BTreeException("Negative cache size of " + cacheSize + " was given");
+		this.fileName = fileName;
+		this.config = config;
+		this.cache = createCache(config);
+		this.metrics = config.metrics;
+		this.readAhead = config.readAhead;
+
+		if (config.pageSize != 0 && !BTreeHeader.isValidPageSize(config.pageSize)) {
+			throw new BTreeException("The page size must be a power of two from " + BTreeHeader.MIN_PAGE_SIZE + " to "
+					+ BTreeHeader.MAX_PAGE_SIZE + " bytes. " + config.pageSize + " was given.\n");
 		}
-
-		if (this.t == 0) {
-			this.t = (4096 + 12) / 32; //optimum size for t based on node size
+		if (this.t == 0) { //the largest degree whose slots fit the page
+			this.t = ((config.pageSize > 0 ? config.pageSize : DEFAULT_PAGE_SIZE) + 12) / 32;
 		} else if (this.t < 2) {
 			throw new BTreeException("Degree " + t + " was given. This is an invalid degree.\n");
 		}
@@ -89,15 +84,22 @@ public class BTree {
 					"Sequence length must be between 1 and 31 (inclusive). " + sequenceLength + " was given.\n");
 		}
 
-		try {
-			file = new RandomAccessFile(fileName, "rw");
+		this.header = BTreeHeader.create(config.compressed, config.canonical, this.t, sequenceLength, config.pageSize);
+		this.format = header.format();
+		this.nodeSize = format.nodeSize();
+		this.pinned = createPinnedTier(config);
+		this.decodedKeys = new long[format.maxKeys()];
+		this.decodedFrequencies = new int[format.maxKeys()];
+		this.decodedChildren = new int[format.maxKeys() + 1];
 
-			file.setLength(12);
-			file.writeInt(12);
-			file.writeInt(this.t);
-			file.writeInt(this.sequenceLength);
+		try {
+			store = new NodeStore(fileName, true, config.mapped, config.writeBehind);
+			store.setLength(header.size());
 
 			root = new BTreeNode();
+			root.dirty = true; //written on close even if nothing is inserted
+			setHeight(1);
+			writeHeader();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -110,19 +112,41 @@ public class BTree {
 	 * @param cacheSize           
 	 */
 	public BTree(String fileName, int cacheSize) {
-		if (cacheSize == 0) {
-			cache = null;
-		} else if (cacheSize > 0) {
-			cache = new Cache(cacheSize);
-		} else {
-			throw new BTreeException("Negative cache size was given");
-		}
+		this(fileName, BTreeConfig.withCache(cacheSize));
+	}
+
+	/**
+	 * Opens BTree from disk, in any version of the file format. With
+	 * config.append set the file is opened read-write and inserts continue
+	 * from the stored root, adding new nodes at the end of the file.
+	 * 
+	 * @param fileName
+	 * @param config cache and storage settings
+	 */
+	public BTree(String fileName, BTreeConfig config) {
+		this.fileName = fileName;
+		this.config = config;
+		this.cache = createCache(config);
+		this.metrics = config.metrics;
+		this.readAhead = config.readAhead;
 		try {
-			file = new RandomAccessFile(fileName, "r");
-			int rootPointer = file.readInt();
-			this.t = file.readInt();
-			this.sequenceLength = file.readInt();
-			root = new BTreeNode(rootPointer);
+			store = new NodeStore(fileName, config.append, config.mapped, config.writeBehind);
+			this.header = BTreeHeader.read(store.read(0, (int) Math.min(BTreeHeader.SIZE, store.length())));
+			this.t = header.t;
+			this.sequenceLength = header.sequenceLength;
+			this.format = header.format();
+			this.nodeSize = format.nodeSize();
+			this.pinned = createPinnedTier(config);
+			this.decodedKeys = new long[format.maxKeys()];
+			this.decodedFrequencies = new int[format.maxKeys()];
+			this.decodedChildren = new int[format.maxKeys() + 1];
+			root = new BTreeNode(header.rootPointer);
+			int levels = 1;
+			for (BTreeNode node = root; !node.isLeaf(); node = new BTreeNode(node.children[0])) {
+				levels++;
+			}
+			setHeight(levels);
+			root.level = levels - 1;
 		} catch (FileNotFoundException e) {
 			System.err.println("Could not open query file.");
 			System.out.println("java GeneBankSearch <0/1(no/with Cache)> <btree file> <query file> [<cache size>] [<debug level>]");
@@ -132,6 +156,34 @@ public class BTree {
 		}	
 	}
 
+	/**
+	 * @param config settings holding the cache size and policy
+	 * @return the cache, or a write buffer that only holds dirty nodes if the size is 0
+	 */
+	private Cache createCache(BTreeConfig config) {
+		if (config.cacheSize == 0) {
+			return new Cache(WRITE_BUFFER_SIZE, NodeCache.Policy.LRU, false);
+		} 
+		else if (config.cacheSize > 0) {
+			return new Cache(config.cacheSize, config.cachePolicy, true);
+		} 
+		else {
+			throw new BTreeException("Negative cache size of " + config.cacheSize + " was given");
+		}
+	}
+
+	/**
+	 * @param config settings holding the pinned memory budget
+	 * @return the pinned tier, holding as many internal nodes as fit in the budget
+	 */
+	private PinnedTier createPinnedTier(BTreeConfig config) {
+		if (config.pinnedMemory < 0) {
+			throw new BTreeException("Negative pinned memory of " + config.pinnedMemory + " was given");
+		}
+		long nodeBytes = format.maxKeys() * 16L + 4 + 64; //arrays plus object overhead
+		return new PinnedTier((int) Math.min(Integer.MAX_VALUE - 8, config.pinnedMemory / nodeBytes));
+	}
+
 	/**
 	 * Gets length of the sequence
 	 * @return the length of the sequence
@@ -139,13 +191,96 @@ public class BTree {
 	public int sequenceLength() {
 		return this.sequenceLength;
 	}
+
+	/**
+	 * @return degree of the tree
+	 */
+	public int degree() {
+		return t;
+	}
 	
+	public boolean isCanonical() {
+		return header.isCanonical();
+	}
+
 	/**
 	 * @param sequence as a string
 	 * @return the frequency of the sequence 
 	 */
 	public int frequency(String sequence) {
-		return root.frequency(stringToLong(sequence));
+		return frequency(stringToLong(sequence));
+	}
+
+	/**
+	 * @param sequence in 2-bit long form
+	 * @return the frequency of the sequence 
+	 */
+	public int frequency(long sequence) {
+		if (metrics == null) {
+			return root.frequency(sequence);
+		}
+		long start = System.nanoTime();
+		int frequency = root.frequency(sequence);
+		metrics.searched(System.nanoTime() - start);
+		return frequency;
+	}
+
+	/**
+	 * Looks up sorted sequences in a single walk of the tree. Each node is
+	 * visited at most once and the nodes are read in key order.
+	 *
+	 * @param sortedKeys sequences in 2-bit long form, in ascending order
+	 * @return the frequency of each sequence, 0 if it is not in the tree
+	 */
+	public int[] frequencyBatch(long[] sortedKeys) {
+		int[] frequencies = new int[sortedKeys.length];
+		frequencyBatch(sortedKeys, 0, sortedKeys.length, frequencies);
+		return frequencies;
+	}
+
+	public void frequencyBatch(long[] sortedKeys, int from, int to, int[] frequencies) {
+		if (from < to) {
+			root.frequencyBatch(sortedKeys, from, to, frequencies);
+		}
+	}
+
+	/**
+	 * Walks the keys from the one at or after from. Leaves are read a few
+	 * at a time when they lie next to each other in the file, as after a
+	 * bulk load, and are not added to the cache, so a long scan does not
+	 * evict the nodes that point lookups need.
+	 */
+	public KmerCursor cursor(long from, long to) {
+		return new Cursor(from, to);
+	}
+
+	/**
+	 * @param n most sequences to return
+	 * @return the n most frequent sequences, most frequent first
+	 */
+	public TopKmers topN(int n) {
+		TopKmers top = new TopKmers(n);
+		top.addAll(cursor(0, Long.MAX_VALUE));
+		return top;
+	}
+
+	/**
+	 * The nodes and the cache of a BTree belong to one thread, so a tree
+	 * opened for searching is scanned on several threads through a
+	 * BTreeReader of the same file, which splits the scan at the keys of
+	 * the root. A tree open for inserting, whose changes may not be on disk
+	 * yet, is scanned on the caller's thread.
+	 */
+	public TopKmers topN(int n, int threads) {
+		if (threads <= 1 || store.isWritable()) {
+			return topN(n);
+		}
+		BTreeReader reader = new BTreeReader(fileName, config);
+		try {
+			return reader.topN(n, threads);
+		} finally {
+			reader.close();
+		}
 	}
 
 	/**
@@ -153,17 +288,146 @@ public class BTree {
 	 * @param sequence as a String
 	 */
 	public void insert(String sequence) {
-		long seq = stringToLong(sequence);
+		insert(stringToLong(sequence));
+	}
 
+	/**
+	 * Inserts an already encoded sequence into the tree
+	 * @param seq the sequence in 2-bit long form
+	 */
+	public void insert(long seq) {
+		insert(seq, 1);
+	}
+
+	/**
+	 * Adds count occurrences of an encoded sequence to the tree
+	 * @param seq the sequence in 2-bit long form
+	 * @param count number of occurrences to add
+	 */
+	public void insert(long seq, int count) {
+		if (metrics == null) {
+			insertFromRoot(seq, count);
+			return;
+		}
+		long start = System.nanoTime();
+		insertFromRoot(seq, count);
+		metrics.inserted(System.nanoTime() - start);
+	}
+
+	private void insertFromRoot(long seq, int count) {
 		if (root.isFull()) {
 			
-			root.fileUpdate();
 			BTreeNode previousRoot = root;
 			root = new BTreeNode();
-			root.pointerList.add(new Integer(previousRoot.nodePointer));
+			root.children[0] = previousRoot.nodePointer;
+			root.leaf = false;
+			root.level = height;
+			previousRoot.markDirty(); //no longer the root, so it goes to the cache
 			root.splitChild(0);
+			setHeight(height + 1);
+		}
+		root.insertNonfull(seq, count);
+	}
+
+	/**
+	 * Adds pre-aggregated counts to the tree. Keys sorted in ascending order
+	 * make consecutive descents share the nodes near their path in the cache.
+	 * 
+	 * @param keys sequences in 2-bit long form
+	 * @param counts number of occurrences of each sequence
+	 */
+	public void insertBatch(long[] keys, int[] counts) {
+		insertBatch(keys, counts, keys.length);
+	}
+
+	/**
+	 * Adds the first length pre-aggregated counts to the tree.
+	 * 
+	 * @param keys sequences in 2-bit long form
+	 * @param counts number of occurrences of each sequence
+	 * @param length number of entries to insert
+	 */
+	public void insertBatch(long[] keys, int[] counts, int length) {
+		for (int i = 0; i < length; i++) {
+			insert(keys[i], counts[i]);
+		}
+	}
+
+	/**
+	 * Inserts a k-mer handed over by a KmerEncoder
+	 * @param kmer the sequence in 2-bit long form
+	 */
+	public void add(long kmer) {
+		insert(kmer);
+	}
+
+	/**
+	 * Builds the tree bottom-up from distinct sequences in ascending order.
+	 * The leaves are written first and then each internal level, all in file
+	 * order. Fixed-slot nodes share the keys of a level evenly; compressed
+	 * nodes are filled up to a share of their bytes. The tree must be empty.
+	 * 
+	 * @param run the sequences and their frequencies in ascending order
+	 * @param fillFactor fraction of a node to fill, in (0, 1]
+	 */
+	public void bulkLoad(KmerRunSorter.Run run, double fillFactor) {
+		if (root.size != 0 || !root.isLeaf()) {
+			throw new BTreeException("Only an empty tree can be bulk loaded.");
+		}
+		if (fillFactor <= 0 || fillFactor > 1) {
+			throw new BTreeException("Fill factor must be in (0, 1], " + fillFactor + " was given.");
+		}
+
+		try {
+			//leaves, taking every key that does not go up as a separator from the run
+			LevelLoader level = new LevelLoader(true, run.size(), fillFactor, 0);
+			while (run.next()) {
+				level.add(run.key(), run.count());
+			}
+			run.close();
+			level.finish();
+
+			//internal levels, taking keys from the separators of the level below
+			while (level.nodes > 1) {
+				LevelLoader upper = new LevelLoader(false, level.separatorCount, fillFactor, level.firstPointer);
+				for (int i = 0; i < level.separatorCount; i++) {
+					upper.add(level.separators[i], level.separatorFrequencies[i]);
+				}
+				upper.finish();
+				level = upper;
+				setHeight(height + 1);
+			}
+			root.level = height - 1;
+		} 
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param levels the new height of the tree
+	 */
+	private void setHeight(int levels) {
+		height = levels;
+		if (metrics != null) {
+			metrics.height(levels);
 		}
-		root.insertNonfull(seq);
+	}
+
+	/**
+	 * @param keys number of keys to lay out on one level, separators included
+	 * @param target number of keys per node
+	 * @return number of nodes needed so each holds at most target keys
+	 */
+	private static int levelNodes(long keys, int target) {
+		return (int) Math.max(1, (keys + 1 + target) / (target + 1));
+	}
+
+	/**
+	 * @return the number of the total keys node j of the given nodes gets
+	 */
+	private static int share(long total, int nodes, int j) {
+		return (int) (total / nodes + (j < total % nodes ? 1 : 0));
 	}
 
 	/**
@@ -172,7 +436,7 @@ public class BTree {
 	public void dump() {
 		try {
 			FileWriter dumpFile = new FileWriter("dump");
-			root.dump(dumpFile);
+			dump(dumpFile);
 			dumpFile.close();
 		} 
 		catch (IOException e) {
@@ -180,21 +444,29 @@ public class BTree {
 		}
 	}
 
+	/**
+	 * dumps the contents of the file into the given writer
+	 * @param dumpFile where the lines are written
+	 */
+	public void dump(FileWriter dumpFile) {
+		root.dump(dumpFile);
+	}
+
 	/**
 	 * Make sure everything is written to disk and close the btree file. BTree
 	 * will not be usable after calling this method.
 	 */
 	public void close() {
 		try {
-			file.seek(0);
-			file.writeInt(root.nodePointer);
-			root.fileUpdate();
-			
-			if (cache != null) {
-				cache.empty();
+			if (!store.isWritable()) {
+				store.close();
+				return;
 			}
-			
-			file.close();
+			writeHeader();
+			root.write();
+			pinned.empty();
+			cache.empty();
+			store.close();
 		} 
 		catch (IOException e) {
 			e.printStackTrace();
@@ -203,33 +475,53 @@ public class BTree {
 
 
 
+	/**
+	 * Writes the header, with the current root pointer, to the start of the file
+	 */
+	private void writeHeader() throws IOException {
+		header.rootPointer = root.nodePointer;
+		header.write(store.buffer(0, header.size()));
+		store.write(0);
+	}
+
 	private class Cache {
 
-		private LinkedList<BTreeNode> cacheList;
-		private int size;
+		private NodeCache<BTreeNode> nodes;
+		private boolean keepClean; //false if only dirty nodes are held
 
 		/**
 		 * @param size of cache
+		 * @param policy eviction policy
+		 * @param keepClean hold nodes read from disk as well as dirty ones
 		 */
-		public Cache(int size) {
+		public Cache(int size, NodeCache.Policy policy, boolean keepClean) {
 			
-			this.size = size;
-			cacheList = new LinkedList<BTreeNode>();
+			nodes = NodeCache.create(policy, size);
+			this.keepClean = keepClean;
+		}
+
+		/**
+		 * @return true if nodes read from disk are cached, not only dirty ones
+		 */
+		public boolean keepsClean() {
+			return keepClean;
 		}
 		
 		/**
-		 * Adds node to cache and removes the last node and saves it to disk.
+		 * Adds node to cache, writing the node it evicts to disk if it is dirty.
 		 * 
 		 * @param node         
 		 */
 		public void add(BTreeNode node) {
-			if (cacheList.size() == size) {
-				BTreeNode lastinCache = cacheList.removeLast();
-				lastinCache.isCached = false;
-				lastinCache.fileUpdate();
+			BTreeNode evicted = nodes.put(node.nodePointer, node);
+			if (evicted != null) {
+				evicted.isCached = false;
+				evicted.write();
+				if (metrics != null) {
+					metrics.cacheEviction();
+				}
 			}
 			node.isCached = true;
-			cacheList.addFirst(node);
 		}
 
 		/**
@@ -240,66 +532,510 @@ public class BTree {
 		 * @return the node that pointer is assigned to
 		 */
 		public BTreeNode get(int pointer) {
-			
-			Iterator<BTreeNode> iterator = cacheList.iterator();
-			boolean isFinished = false;
-			BTreeNode returnNode = null;
-			
-			while (!isFinished && iterator.hasNext()) {
-				BTreeNode tmp = iterator.next();
+			return nodes.get(pointer);
+		}
+
+		/**
+		 * Takes a node out of the cache without writing it.
+		 * 
+		 * @param node a cached node
+		 */
+		public void remove(BTreeNode node) {
+			nodes.remove(node.nodePointer);
+			node.isCached = false;
+		}
+
+
+		/**
+		 * empty cache and write the dirty nodes to the file
+		 */
+		public void empty() {
+			BTreeNode currentNode = nodes.evict();
+			while (currentNode != null) {
 				
-				if (tmp.nodePointer == pointer) {
-					
-					isFinished = true;
-					returnNode = tmp;
-					iterator.remove();
-					
-					cacheList.addFirst(returnNode);
+				currentNode.isCached = false;
+				currentNode.write();
+				currentNode = nodes.evict();
+			}
+		}
+	}
+	
+	/**
+	 * Internal nodes kept resident apart from the cache, so scans of leaves
+	 * cannot evict the upper levels of the tree. A node's level, counted up
+	 * from the leaves at 0, never changes: splits add siblings on the same
+	 * level and a new root goes on top. When the tier is full, a node from
+	 * a level nearer the root takes the place of one from the lowest pinned
+	 * level, which moves to the cache. Pinned nodes are written when they
+	 * leave the tier or on close.
+	 */
+	private class PinnedTier {
+
+		private final int capacity;
+		private BTreeNode[] slots; //grown on demand up to the capacity
+		private NodeCache.IntIndex index; //pointer to slot
+		private int[] next; //next slot of the same level, or of the free list
+		private int[] previous;
+		private final int[] levelHeads = new int[MAX_LEVELS];
+		private int free;
+		private int size;
+		private int lowestLevel; //lowest level with a pinned node, if size > 0
+
+		/**
+		 * @param capacity maximum number of pinned nodes, 0 to pin none
+		 */
+		public PinnedTier(int capacity) {
+			this.capacity = capacity;
+			this.slots = new BTreeNode[0];
+			this.next = new int[0];
+			this.previous = new int[0];
+			this.index = new NodeCache.IntIndex(0);
+			this.free = NodeCache.NONE;
+			Arrays.fill(levelHeads, NodeCache.NONE);
+		}
+
+		/**
+		 * Doubles the slots, up to the capacity, and rebuilds the index.
+		 */
+		private void grow() {
+			int oldLength = slots.length;
+			int length = (int) Math.min(capacity, Math.max(64, 2L * oldLength));
+			slots = Arrays.copyOf(slots, length);
+			next = Arrays.copyOf(next, length);
+			previous = Arrays.copyOf(previous, length);
+			index = new NodeCache.IntIndex(length);
+			for (int i = 0; i < oldLength; i++) {
+				index.put(slots[i].nodePointer, i); //every old slot is in use when growing
+			}
+			for (int i = oldLength; i < length; i++) {
+				next[i] = i + 1 < length ? i + 1 : NodeCache.NONE;
+			}
+			free = oldLength;
+		}
+
+		/**
+		 * @param node an internal node that is neither pinned nor cached
+		 * @return true if offer would pin the node
+		 */
+		public boolean accepts(BTreeNode node) {
+			return capacity > 0 && !node.leaf && (size < capacity || node.level > lowestLevel);
+		}
+
+		/**
+		 * @param pointer of a node
+		 * @return the pinned node, or null if it is not pinned
+		 */
+		public BTreeNode get(int pointer) {
+			if (size == 0) {
+				return null;
+			}
+			int slot = index.get(pointer);
+			return slot == NodeCache.NONE ? null : slots[slot];
+		}
+
+		/**
+		 * Pins an internal node if there is room, or if it is nearer the root
+		 * than a pinned node, which then moves to the cache.
+		 * 
+		 * @param node an internal node that is neither pinned nor cached
+		 * @return true if the node was pinned
+		 */
+		public boolean offer(BTreeNode node) {
+			if (!accepts(node)) {
+				return false;
+			}
+			if (size == capacity) {
+				BTreeNode victim = slots[levelHeads[lowestLevel]];
+				remove(victim);
+				if (victim.dirty || cache.keepsClean()) {
+					cache.add(victim);
 				}
+			} else if (free == NodeCache.NONE) {
+				grow();
+			}
+
+			int slot = free;
+			free = next[slot];
+			slots[slot] = node;
+			index.put(node.nodePointer, slot);
+			int level = node.level;
+			next[slot] = levelHeads[level];
+			previous[slot] = NodeCache.NONE;
+			if (levelHeads[level] != NodeCache.NONE) {
+				previous[levelHeads[level]] = slot;
 			}
-			return returnNode;
+			levelHeads[level] = slot;
+			if (size == 0 || level < lowestLevel) {
+				lowestLevel = level;
+			}
+			size++;
+			node.isPinned = true;
+			return true;
 		}
 
+		private void remove(BTreeNode node) {
+			int slot = index.get(node.nodePointer);
+			index.remove(node.nodePointer);
+			if (previous[slot] != NodeCache.NONE) {
+				next[previous[slot]] = next[slot];
+			} else {
+				levelHeads[node.level] = next[slot];
+			}
+			if (next[slot] != NodeCache.NONE) {
+				previous[next[slot]] = previous[slot];
+			}
+			slots[slot] = null;
+			next[slot] = free;
+			free = slot;
+			size--;
+			node.isPinned = false;
+			while (size > 0 && levelHeads[lowestLevel] == NodeCache.NONE) {
+				lowestLevel++;
+			}
+		}
 
 		/**
-		 * empty cache and update file
+		 * Writes the changed pinned nodes to the file.
 		 */
 		public void empty() {
-			while (!cacheList.isEmpty()) {
-				
-				BTreeNode currentNode = cacheList.removeLast();
-				currentNode.isCached = false;
-				currentNode.fileUpdate();
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null) {
+					slots[i].write();
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Packs the keys of one level of a bulk load into nodes and writes them
+	 * in file order, keeping the key between two neighbouring nodes as a
+	 * separator for the level above. A node is only allocated once the key
+	 * after its separator arrives, so the nodes of a level are contiguous in
+	 * the file and a level that fits in one node becomes the root.
+	 */
+	private class LevelLoader {
+
+		private final boolean leaf;
+		private final long total; //keys of the level, separators included
+		private final int planned; //nodes the keys are shared evenly over, 0 to fill by size
+		private final int budget; //sum of entry sizes a node may reach when filled by size
+		private final long[] keys = new long[format.maxKeys()];
+		private final int[] frequencies = new int[format.maxKeys()];
+		private final int[] children = new int[format.maxKeys() + 1];
+		private int size;
+		private int bytes;
+		private int childPointer; //next node of the level below
+		private int written;
+		private boolean pending; //the key that did not fit, to become a separator
+		private long pendingKey;
+		private int pendingFrequency;
+
+		int nodes; //nodes of the level, set by finish
+		int firstPointer;
+		long[] separators = new long[16];
+		int[] separatorFrequencies = new int[16];
+		int separatorCount;
+
+		/**
+		 * @param leaf true for the leaf level
+		 * @param total number of keys that will be added
+		 * @param fillFactor fraction of a node to fill, in (0, 1]
+		 * @param firstChild pointer to the first node of the level below, 0 for the leaves
+		 */
+		LevelLoader(boolean leaf, long total, double fillFactor, int firstChild) {
+			this.leaf = leaf;
+			this.total = total;
+			int target = format.fillKeys(fillFactor);
+			this.planned = target > 0 ? levelNodes(total, target) : 0;
+			this.budget = format.fillBytes(fillFactor);
+			this.childPointer = firstChild;
+		}
+
+		/**
+		 * Adds the next key in ascending order.
+		 */
+		void add(long key, int frequency) {
+			if (pending) { //another key follows, so the full node is not the last
+				close();
+				addSeparator(pendingKey, pendingFrequency);
+				pending = false;
+			}
+			if (!fits(key, frequency)) {
+				pending = true;
+				pendingKey = key;
+				pendingFrequency = frequency;
+				return;
+			}
+			put(key, frequency);
+		}
+
+		/**
+		 * Writes the last node of the level, or fills the root with it if it is the only one.
+		 */
+		void finish() {
+			if (pending) { //the node's last key separates it from a node of the key that did not fit
+				size--;
+				if (!leaf) {
+					childPointer -= nodeSize;
+				}
+				long key = keys[size];
+				int frequency = frequencies[size];
+				close();
+				addSeparator(key, frequency);
+				put(pendingKey, pendingFrequency);
+				pending = false;
+			}
+			if (written == 0) {
+				if (!leaf) {
+					children[size] = childPointer;
+				}
+				fill(root);
+				nodes = 1;
+			} else {
+				close();
+				nodes = written;
+			}
+		}
+
+		private boolean fits(long key, int frequency) {
+			if (planned > 0) {
+				return size < share(total - (planned - 1), planned, written);
+			}
+			int entry = format.entrySize(size == 0 ? -1 : keys[size - 1], key, frequency, leaf ? 0 : childPointer);
+			return size == 0 || (size < format.maxKeys() && bytes + entry <= budget);
+		}
+
+		private void put(long key, int frequency) {
+			int child = leaf ? 0 : childPointer;
+			bytes += format.entrySize(size == 0 ? -1 : keys[size - 1], key, frequency, child);
+			keys[size] = key;
+			frequencies[size] = frequency;
+			if (!leaf) {
+				children[size] = childPointer;
+				childPointer += nodeSize;
+			}
+			size++;
+		}
+
+		/**
+		 * Allocates and writes the node being filled, and starts the next.
+		 */
+		private void close() {
+			if (!leaf) {
+				children[size] = childPointer;
+				childPointer += nodeSize;
+			}
+			BTreeNode node = new BTreeNode();
+			if (written == 0) {
+				firstPointer = node.nodePointer;
+			}
+			fill(node);
+			node.write();
+			written++;
+			size = 0;
+			bytes = 0;
+		}
+
+		private void fill(BTreeNode node) {
+			System.arraycopy(keys, 0, node.keys, 0, size);
+			System.arraycopy(frequencies, 0, node.frequencies, 0, size);
+			if (!leaf) {
+				System.arraycopy(children, 0, node.children, 0, size + 1);
+			}
+			node.size = size;
+			node.leaf = leaf;
+			node.dirty = true;
+			node.encodedSize = -1;
+		}
+
+		private void addSeparator(long key, int frequency) {
+			if (separatorCount == separators.length) {
+				separators = Arrays.copyOf(separators, 2 * separatorCount);
+				separatorFrequencies = Arrays.copyOf(separatorFrequencies, 2 * separatorCount);
+			}
+			separators[separatorCount] = key;
+			separatorFrequencies[separatorCount] = frequency;
+			separatorCount++;
+		}
+	}
+
+	/**
+	 * In-order walk of the tree with a stack of the nodes from the root to
+	 * the current key. Each node on the stack has a position among its
+	 * children and keys in order: 2i stands for child i, 2i + 1 for key i.
+	 */
+	private class Cursor implements KmerCursor {
+
+		private final long to;
+		private final BTreeNode[] path = new BTreeNode[height];
+		private final int[] positions = new int[height];
+		private int depth;
+		private long key;
+		private int frequency;
+		private final BTreeNode[] ahead; //leaves read ahead, the children of aheadParent from aheadFirst on
+		private BTreeNode aheadParent;
+		private int aheadFirst;
+		private int aheadCount;
+
+		Cursor(long from, long to) {
+			this.to = to;
+			this.ahead = new BTreeNode[Math.max(1, readAhead)];
+			if (from > to) {
+				return;
+			}
+			BTreeNode node = root;
+			while (true) {
+				int i = node.search(from);
+				if (i >= 0 || node.isLeaf()) { //the next key is key i, or the first after the node
+					push(node, i >= 0 ? 2 * i + 1 : -2 * i - 1);
+					return;
+				}
+				i = -i - 1;
+				push(node, 2 * i + 1); //key i follows child i
+				node = descend(node, i);
+			}
+		}
+
+		public boolean next() {
+			while (depth > 0) {
+				BTreeNode node = path[depth - 1];
+				int position = positions[depth - 1]++;
+				if (position > 2 * node.size) {
+					depth--;
+				} else if ((position & 1) == 0) {
+					if (!node.isLeaf()) {
+						int c = position / 2;
+						if (c > 0 && node.keys[c - 1] >= to) { //the child only holds larger keys
+							break;
+						}
+						push(descend(node, c), 0);
+					}
+				} else {
+					key = node.keys[position / 2];
+					if (key > to) {
+						break;
+					}
+					frequency = node.frequencies[position / 2];
+					return true;
+				}
+			}
+			depth = 0;
+			return false;
+		}
+
+		public long key() {
+			return key;
+		}
+
+		public long high() {
+			return 0;
+		}
+
+		public int frequency() {
+			return frequency;
+		}
+
+		private void push(BTreeNode node, int position) {
+			path[depth] = node;
+			positions[depth] = position;
+			depth++;
+		}
+
+		/**
+		 * @return child c of the node, a leaf from the read-ahead if the children are leaves
+		 */
+		private BTreeNode descend(BTreeNode node, int c) {
+			if (node.level != 1 || ahead.length == 1) {
+				return node.child(c);
+			}
+			if (node != aheadParent || c < aheadFirst || c >= aheadFirst + aheadCount) {
+				readAhead(node, c);
+			}
+			return ahead[c - aheadFirst];
+		}
+
+		/**
+		 * Gets the leaves from child first of the parent on, up to the
+		 * read-ahead and not past the end of the range. Leaves held in the
+		 * pinned tier or the cache are taken from there, as they may be newer
+		 * than the file; runs of the others stored one after another are read
+		 * with a single read.
+		 */
+		private void readAhead(BTreeNode parent, int first) {
+			int count = Math.min(ahead.length, parent.size + 1 - first);
+			for (int j = 1; j < count; j++) {
+				if (parent.keys[first + j - 1] >= to) {
+					count = j;
+					break;
+				}
+			}
+			aheadParent = parent;
+			aheadFirst = first;
+			aheadCount = count;
+
+			int j = 0;
+			while (j < count) {
+				int pointer = parent.children[first + j];
+				BTreeNode resident = resident(pointer);
+				if (resident != null) {
+					if (metrics != null) {
+						metrics.cacheHit();
+					}
+					ahead[j++] = resident;
+					continue;
+				}
+				int run = 1;
+				while (j + run < count && parent.children[first + j + run] == pointer + run * nodeSize
+						&& resident(pointer + run * nodeSize) == null) {
+					run++;
+				}
+				try {
+					ByteBuffer buffer = store.read(pointer, run * nodeSize);
+					for (int r = 0; r < run; r++) {
+						ahead[j + r] = new BTreeNode(pointer + r * nodeSize, buffer, buffer.position() + r * nodeSize);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				if (metrics != null) {
+					for (int r = 0; r < run; r++) {
+						metrics.cacheMiss();
+					}
+				}
+				j += run;
+			}
+		}
+
+		/**
+		 * @return the node at the pointer if the pinned tier or the cache holds it, otherwise null
+		 */
+		private BTreeNode resident(int pointer) {
+			BTreeNode node = pinned.get(pointer);
+			return node != null ? node : cache.get(pointer);
+		}
+	}
+
 	private class BTreeNode {
 
-		public LinkedList<TreeObject> data; //key values being stored
-		public LinkedList<Integer> pointerList; //pointers to the nodes
+		public long[] keys; //key values being stored, in ascending order
+		public int[] frequencies; //frequency of each key
+		public int[] children; //pointers to the child nodes
+		public int size; //number of keys in the node
+		public boolean leaf; //does the node have children?
 		public final int nodePointer; //index of node's location
 		public boolean isCached; //is the value cached?
+		public boolean isPinned; //is the node in the pinned tier?
+		public int level; //levels above the leaves, which are at 0
+		public boolean dirty; //changed since it was last written?
+		private int encodedSize = -1; //bytes the node takes in the file, kept up to date once known
 
 		/**
 		 * Creates a new empty node on the disk
 		 */
 		public BTreeNode() {
-			int n = 0;
-			
-			try {
-				n = (int) file.length();
-
-				file.setLength(n + 32 * t - 12); //allocate space for node based on size
-				
-				data = new LinkedList<TreeObject>();
-				pointerList = new LinkedList<Integer>();
-			} 
-
-			catch (IOException e) {
-				e.printStackTrace();
-			}
-			nodePointer = n;
+			allocate();
+			nodePointer = (int) store.allocate(nodeSize); //allocate space for node based on size
+			leaf = true;
 			isCached = false;
 		}
 
@@ -314,34 +1050,8 @@ public class BTree {
 			nodePointer = pointer;
 			
 			try {
-				file.seek(nodePointer);
-				
-				byte[] bytes = new byte[32 * t - 12];
-				file.read(bytes);
-				ByteBuffer buffer = ByteBuffer.wrap(bytes);
-				data = new LinkedList<TreeObject>();
-
-				for (int i = 0; i < 2 * t - 1; i++) {
-					int frequency = buffer.getInt();
-					long seq = buffer.getLong();
-					
-					if (frequency != 0) {
-						data.add(new TreeObject(seq, frequency));
-					}
-				}
-
-				pointerList = new LinkedList<Integer>();
-
-				int first = buffer.getInt();
-				if (first != 0) {
-					pointerList.add(first);
-				}
-
-				if (!isLeaf()) {
-					for (int i = 1; i < data.size() + 1; i++) {
-						pointerList.add(new Integer(buffer.getInt()));
-					}
-				}
+				ByteBuffer buffer = store.read(nodePointer, nodeSize);
+				decode(buffer, buffer.position(), !store.isWritable());
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -349,11 +1059,57 @@ public class BTree {
 			isCached = false;
 		}
 
+		/**
+		 * Constructs a read-only copy of a node from a page already read,
+		 * e.g. one of several pages read at once.
+		 *
+		 * @param pointer of the node
+		 * @param buffer holding the page
+		 * @param offset of the page in the buffer
+		 */
+		public BTreeNode(int pointer, ByteBuffer buffer, int offset) {
+			nodePointer = pointer;
+			decode(buffer, offset, true);
+			isCached = false;
+		}
+
+		/**
+		 * @param trim true if the node never changes, so the arrays only need to hold its keys
+		 */
+		private void decode(ByteBuffer buffer, int offset, boolean trim) {
+			if (!trim) {
+				allocate();
+				size = format.decode(buffer, offset, keys, frequencies, children);
+			} else {
+				size = format.decode(buffer, offset, decodedKeys, decodedFrequencies, decodedChildren);
+				keys = Arrays.copyOf(decodedKeys, size);
+				frequencies = Arrays.copyOf(decodedFrequencies, size);
+				children = Arrays.copyOf(decodedChildren, size + 1);
+			}
+			if (metrics != null) {
+				metrics.nodeRead(nodeSize);
+			}
+			leaf = children[0] == 0;
+		}
+
+		/**
+		 * Allocates the key, frequency and child arrays for the most keys a node can hold.
+		 */
+		private void allocate() {
+			keys = new long[format.maxKeys()];
+			frequencies = new int[format.maxKeys()];
+			children = new int[format.maxKeys() + 1];
+			size = 0;
+		}
+
 		/**
 		 * @return true if node is full
 		 */
 		public boolean isFull() {
-			return data.size() == 2 * t - 1;
+			if (encodedSize < 0) {
+				encodedSize = format.encodedSize(size, keys, frequencies, children, leaf);
+			}
+			return format.isFull(size, encodedSize);
 		}
 
 		/**
@@ -361,7 +1117,17 @@ public class BTree {
 		 */
 		public boolean isLeaf() {
 			
-			return pointerList.size() == 0;
+			return leaf;
+		}
+
+		/**
+		 * Binary search for a sequence among the keys of this node.
+		 * 
+		 * @param sequence to look for
+		 * @return index of the key if found, otherwise (-(insertion point) - 1)
+		 */
+		public int search(long sequence) {
+			return Arrays.binarySearch(keys, 0, size, sequence);
 		}
 
 		/**
@@ -374,61 +1140,65 @@ public class BTree {
 			if (isLeaf()) {
 				throw new BTreeException("This is a leaf node, of which has no children.");
 			}
-			int pointer = pointerList.get(idx);
-			if (cache == null) {
-				return new BTreeNode(pointer);
-			} 
-			else 
-			{
-				BTreeNode child = cache.get(pointer);
+			int pointer = children[idx];
+			BTreeNode child = pinned.get(pointer);
+			if (child != null) {
+				if (metrics != null) {
+					metrics.cacheHit();
+				}
+				return child;
+			}
 
-				if (child != null) 
-				{
-					return child;
-				} 
+			child = cache.get(pointer);
+			if (metrics != null) {
+				if (child == null) {
+					metrics.cacheMiss();
+				} else {
+					metrics.cacheHit();
+				}
+			}
 
-				else 
-				{
-					child = new BTreeNode(pointer);
+			if (child == null) 
+			{
+				child = new BTreeNode(pointer);
+				child.level = level - 1;
+				if (!pinned.offer(child) && cache.keepsClean()) {
 					cache.add(child);
-					return child;
 				}
+			} 
+			else if (pinned.accepts(child)) { //move to the pinned tier
+				cache.remove(child);
+				pinned.offer(child);
 			}
+			return child;
 		}
 
 		/**
-		 * Writes a node to the disk only when it is not in the cache.
-		 * TODO -- Doesn't this need write only if not found in tree?
+		 * Records that the node changed. The node is written when it leaves
+		 * the cache or on close, so repeated changes to a hot node cost no I/O.
+		 * The root is never cached and is written on close, pinned nodes when
+		 * they leave the pinned tier.
 		 */
-		public void fileUpdate() {
-			if (isCached == false || cache == null ) {
-				try {
-					ByteBuffer buffer = ByteBuffer.allocate((32 * t) - 12);
-
-
-					for (int i = 0; i < data.size(); i++) { //writing data to file
-						buffer.putInt(data.get(i).getFrequency());
-						buffer.putLong(data.get(i).getSequence());
-					}
-
-					for (int i = data.size(); i < (2 * t - 1); i++) { //fill out rest of allocated space
-						buffer.putInt(0);
-						buffer.putLong(0L);
-					}
+		public void markDirty() {
+			dirty = true;
+			if (!isCached && !isPinned && this != root && !pinned.offer(this)) {
+				cache.add(this);
+			}
+		}
 
-					if (!isLeaf()) {
-						for (int i = 0; i < pointerList.size(); i++) { //write pointer array to file
-							buffer.putInt(pointerList.get(i));
-						}
+		/**
+		 * Writes the node to the disk if it changed since it was last written.
+		 */
+		public void write() {
+			if (dirty) {
+				try {
+					ByteBuffer buffer = store.buffer(nodePointer, nodeSize);
+					format.encode(buffer, buffer.position(), size, keys, frequencies, children, leaf);
+					store.write(nodePointer);
+					if (metrics != null) {
+						metrics.nodeWritten(nodeSize);
 					}
-
-					byte[] bytes = new byte[32 * t - 12];
-
-					buffer.clear();
-					buffer.get(bytes);
-
-					file.seek(nodePointer);
-					file.write(bytes);
+					dirty = false;
 				} 
 				catch (IOException e) {
 					e.printStackTrace();
@@ -436,63 +1206,85 @@ public class BTree {
 			}
 		}
 
+		/**
+		 * Inserts a key at the given index of a leaf, shifting the larger keys right.
+		 * 
+		 * @param idx index the key ends up at
+		 * @param sequence the key
+		 * @param frequency the frequency of the key
+		 */
+		private void insertKey(int idx, long sequence, int frequency) {
+			System.arraycopy(keys, idx, keys, idx + 1, size - idx);
+			System.arraycopy(frequencies, idx, frequencies, idx + 1, size - idx);
+			keys[idx] = sequence;
+			frequencies[idx] = frequency;
+			size++;
+			if (encodedSize >= 0) {
+				encodedSize += format.insertedSize(size, keys, frequencies, children, leaf, idx);
+			}
+		}
+
+		/**
+		 * Adds to the frequency of the key at the given index.
+		 * 
+		 * @param idx index of the key
+		 * @param count number of occurrences to add
+		 */
+		private void addFrequency(int idx, int count) {
+			int frequency = frequencies[idx] + count;
+			if (encodedSize >= 0) {
+				encodedSize += format.frequencyChange(frequencies[idx], frequency);
+			}
+			frequencies[idx] = frequency;
+		}
+
 		/**
 		 * Insert sequence into the non-full node
 		 * 
 		 * @param sequence what is getting inserted
+		 * @param count number of occurrences to add
 		 */
-		public void insertNonfull(long sequence) {
+		public void insertNonfull(long sequence, int count) {
 			if (isFull()) {
 				throw new BTreeException("Node must have space");
 			}
 
-			if (data.size() == 0 && isLeaf()) {
-				data.add(new TreeObject(sequence));
-				return;
-			}
+			int i = search(sequence);
 
-			ListIterator<TreeObject> iterator = data.listIterator(data.size());
+			if (i >= 0) {
 
-
-			int i = data.size();
-			while (iterator.hasPrevious() && iterator.previous().getSequence() > sequence) {
-				i--;
+				addFrequency(i, count);
+				markDirty();
+				return;
 			}
+			i = -i - 1;
 
-			TreeObject current = iterator.next();
-
-			if (sequence == current.getSequence()) {
-
-				current.incrementFrequency();
-				fileUpdate();
-			}
-			else if (isLeaf()) {
+			if (isLeaf()) {
 
-				data.add(i, new TreeObject(sequence));
-				fileUpdate();
+				insertKey(i, sequence, count);
+				markDirty();
 			} 
 			else 
 			{ //inserting into child node
 
 				BTreeNode childNode = child(i);
 				if (!childNode.isFull()) { //child has room
-					childNode.insertNonfull(sequence);
+					childNode.insertNonfull(sequence, count);
 				}
 
 				else { //no room in child
 					splitChild(i);
 
-					TreeObject insertedValue = data.get(i);
-					if (sequence == insertedValue.getSequence()) {
+					if (sequence == keys[i]) {
 
-						insertedValue.incrementFrequency();
-						fileUpdate();
+						addFrequency(i, count);
+						markDirty();
 					} 
-					else if (insertedValue.getSequence() < sequence) {
-						child(i + 1).insertNonfull(sequence);
+					else if (keys[i] < sequence) {
+						child(i + 1).insertNonfull(sequence, count);
 					} 
 					else {
-						child(i).insertNonfull(sequence);// go ahead and insert into the child node	
+						child(i).insertNonfull(sequence, count);// go ahead and insert into the child node	
 					}
 				}
 			}
@@ -508,24 +1300,35 @@ public class BTree {
 			if (!currentChild.isFull()) {
 				throw new BTreeException("This child does not need to be split");
 			}
-
-			pointerList.add(index + 1, new Integer(newChild.nodePointer));
-
-			while (currentChild.data.size() > t) {
-				newChild.data.addFirst(currentChild.data.removeLast());
+			if (metrics != null) {
+				metrics.split();
 			}
 
-			data.add(index, currentChild.data.removeLast());
-
-			while (currentChild.pointerList.size() > t) { //adjust the pointers
-				newChild.pointerList.addFirst(currentChild.pointerList.removeLast());
+			//the keys after the median and their children move to the new child
+			int median = format.splitIndex(currentChild.size, currentChild.keys, currentChild.frequencies,
+					currentChild.children, currentChild.leaf);
+			int moved = currentChild.size - median - 1;
+			System.arraycopy(currentChild.keys, median + 1, newChild.keys, 0, moved);
+			System.arraycopy(currentChild.frequencies, median + 1, newChild.frequencies, 0, moved);
+			newChild.size = moved;
+			newChild.leaf = currentChild.leaf;
+			newChild.level = currentChild.level;
+
+			if (!currentChild.leaf) { //adjust the pointers
+				System.arraycopy(currentChild.children, median + 1, newChild.children, 0, moved + 1);
 			}
 
+			System.arraycopy(children, index + 1, children, index + 2, size - index);
+			children[index + 1] = newChild.nodePointer;
+
+			//median key moves up into this node
+			insertKey(index, currentChild.keys[median], currentChild.frequencies[median]);
+			currentChild.size = median;
+			currentChild.encodedSize = -1;
 
-			if (nodePointer != root.nodePointer)
-				fileUpdate();
-			currentChild.fileUpdate();
-			newChild.fileUpdate();
+			markDirty();
+			currentChild.markDirty();
+			newChild.markDirty();
 		}
 
 		/**
@@ -533,144 +1336,103 @@ public class BTree {
 		 * @return the frequency of the given sequence
 		 */
 		public int frequency(long sequence) {
-			ListIterator<TreeObject> iterator = data.listIterator(data.size());
+			int i = search(sequence);
 
-			int i = data.size();
-			while (iterator.hasPrevious() && iterator.previous().getSequence() > sequence) { //find insertion point
-				i--;
-			}
-			TreeObject curr = iterator.next();
-			if (sequence == curr.getSequence()) { //if found
+			if (i >= 0) { //if found
 
-				return curr.getFrequency();
+				return frequencies[i];
 			} 
 			else if (isLeaf()) {
 				return 0;
 			} 
 			else {
-				return child(i).frequency(sequence);
+				return child(-i - 1).frequency(sequence);
+			}
+		}
+
+		/**
+		 * Looks up a sorted range of sequences in this subtree, descending into
+		 * each child once with the sequences that belong below it.
+		 *
+		 * @param sortedKeys sequences in ascending order
+		 * @param from index of the first sequence
+		 * @param to index after the last sequence
+		 * @param result receives the frequencies
+		 */
+		public void frequencyBatch(long[] sortedKeys, int from, int to, int[] result) {
+			int i = from;
+			while (i < to) {
+				int found = search(sortedKeys[i]);
+				if (found >= 0) {
+					result[i++] = frequencies[found];
+					continue;
+				}
+
+				int c = -found - 1;
+				int end = i + 1; //the sequences below keys[c] all go to child c
+				while (end < to && (c == size || sortedKeys[end] < keys[c])) {
+					end++;
+				}
+				if (isLeaf()) {
+					Arrays.fill(result, i, end, 0);
+				} else {
+					child(c).frequencyBatch(sortedKeys, i, end, result);
+				}
+				i = end;
 			}
 		}
 
 		/**
-		 * Dumps the TreeObjects into a dump file
+		 * Dumps the keys into a dump file
 		 * 
 		 * @param dumpFile
 		 *            
 		 */
 		public void dump(FileWriter dumpFile) {
-			if (!isLeaf()) {
-				
-				ListIterator<TreeObject> iter = data.listIterator();
-				child(iter.nextIndex()).dump(dumpFile);
-				
-				while (iter.hasNext()) {
-					try {
-						dumpFile.write(iter.next() + "\n");			
-					} 
-					catch (IOException e) {
-						e.printStackTrace();
-					}
-
-					child(iter.nextIndex()).dump(dumpFile);
+			for (int i = 0; i <= size; i++) {
+				if (!isLeaf()) {
+					child(i).dump(dumpFile);
 				}
-				
-			} 
-			else {
-				ListIterator<TreeObject> iterator = data.listIterator();
-				while (iterator.hasNext()) {
+
+				if (i < size) {
 					try {
-						dumpFile.write(iterator.next() + "\n");
+						dumpFile.write(frequencies[i] + " " + longToString(keys[i]) + "\n");
 					} 
 					catch (IOException e) {
 						e.printStackTrace();
 					}
 				}
-				
 			}
-
 		}
 	}
-	
-	
-	
-	
-
-	private class TreeObject {
-
-		private long sequence;
-		private int frequency;
-
-		/**
-		 * Constructs a new TreeObject and sets the frequency to 1
-		 * 
-		 * @param sequence the object's sequence in long form           
-		 */
-		public TreeObject(long sequence) {
-			frequency = 1;
-			this.sequence = sequence;
-		}
-
-		/**
-		 * Construct a TreeObject from the file
-		 * 
-		 * @param sequence the sequence in long form          
-		 * @param frequency of the sequence            
-		 */
-		public TreeObject(long sequence, int frequency) {
-			this.sequence = sequence;
-			this.frequency = frequency;
-		}
 
-		/**
-		 * @return the sequence in binary
-		 */
-		public long getSequence() {
-			return sequence;
-		}
-
-		/**
-		 * @return the frequency of the sequence
-		 */
-		public int getFrequency() {
-			return frequency;
-		}
-
-		/**
-		 * Increment the frequency of the sequence
-		 */
-		public void incrementFrequency() {
-			frequency++;
-		}
-
-		/**
-		 * The toString() of the TreeObject
-		 */
-		public String toString() {
-			char[] sequenceArray = new char[sequenceLength];
-			long binMask = 0x3L;
-			long sequenceShifter = sequence;
+	/**
+	 * @param sequence the sequence in long form
+	 * 
+	 * @return the sequence as a string of bases
+	 */
+	private String longToString(long sequence) {
+		char[] sequenceArray = new char[sequenceLength];
+		long binMask = 0x3L;
+		long sequenceShifter = sequence;
+		
+		for (int i = sequenceLength - 1; i >= 0; i--) {
+			long current = sequenceShifter & binMask;
 			
-			for (int i = sequenceLength - 1; i >= 0; i--) {
-				long current = sequenceShifter & binMask;
-				
-				if (current == 0x0L) {
-					sequenceArray[i] = 'A';
-				} 
-				else if (current == 0x3L) {
-					sequenceArray[i] = 'T';
-				} 
-				else if (current == 0x1L) {
-					sequenceArray[i] = 'C';
-				} 
-				else if (current == 0x2L) {
-					sequenceArray[i] = 'G';
-				}
-				sequenceShifter = sequenceShifter >>> 2;
+			if (current == 0x0L) {
+				sequenceArray[i] = 'A';
+			} 
+			else if (current == 0x3L) {
+				sequenceArray[i] = 'T';
+			} 
+			else if (current == 0x1L) {
+				sequenceArray[i] = 'C';
+			} 
+			else if (current == 0x2L) {
+				sequenceArray[i] = 'G';
 			}
-			return frequency + " " + new String(sequenceArray);
+			sequenceShifter = sequenceShifter >>> 2;
 		}
+		return new String(sequenceArray);
 	}
-
-	
 }
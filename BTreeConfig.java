@@ -0,0 +1,52 @@
+/**
+ * Optional settings for creating or opening a BTree. The defaults match a
+ * BTree without a cache.
+ */
+public class BTreeConfig {
+
+	/** number of nodes kept in the cache, 0 if only a small write buffer is used */
+	public int cacheSize = 0;
+
+	/** memory in bytes for internal nodes pinned apart from the cache, 0 to pin none; the command lines default to 64 MB */
+	public long pinnedMemory = 0;
+
+	/** eviction policy of the cache */
+	public NodeCache.Policy cachePolicy = NodeCache.Policy.LRU;
+
+	/** write new trees in the compressed node format instead of fixed slots */
+	public boolean compressed = false;
+
+	/** store each k-mer of new trees as the lesser of itself and its reverse complement */
+	public boolean canonical = false;
+
+	/** bytes of a page to align the nodes of new trees to, 0 to store them unaligned */
+	public int pageSize = 0;
+
+	/** leaves a cursor reads at once when they lie next to each other in the file, 1 to read them one by one */
+	public int readAhead = 8;
+
+	/** bytes of evicted and split nodes that may wait for a background writer, 0 to write them on the inserting thread */
+	public long writeBehind = 0;
+
+	/** access the file through a memory mapping */
+	public boolean mapped = false;
+
+	/** open existing trees read-write so more sequences can be inserted into them */
+	public boolean append = false;
+
+	/** open trees for searching with a BTreeReader so several threads can query them */
+	public boolean threadSafe = false;
+
+	/** records node I/O, cache, split and latency counters if not null */
+	public BTreeMetrics metrics = null;
+
+	/**
+	 * @param cacheSize size of cache. 0 if not using one.
+	 * @return settings for a cache of the given size and the default policy
+	 */
+	public static BTreeConfig withCache(int cacheSize) {
+		BTreeConfig config = new BTreeConfig();
+		config.cacheSize = cacheSize;
+		return config;
+	}
+}
@@ -4,4 +4,8 @@ public class BTreeException extends RuntimeException {
 	public BTreeException(String msg) {
 		super(msg);
 	}
+
+	public BTreeException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
 }
@@ -0,0 +1,192 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The start of a BTree file. Files written before the format was versioned,
+ * and files that still use unaligned fixed-slot nodes without flags, begin
+ * with a 12 byte header of the root pointer, the degree and the sequence length (version
+ * 0). Later versions begin with a negative magic number, which no root
+ * pointer can be, followed by the version, the root pointer, the degree,
+ * the sequence length, the node size, a word of flags and the page size.
+ * With a page size the header is padded to a whole page and every node
+ * takes one page, so no node straddles two pages of the OS or the device.
+ */
+public class BTreeHeader {
+
+	/** "KMER" with the top bit set */
+	public static final int MAGIC = 0xCB4D4552;
+
+	/** fixed slots of a frequency and a sequence per key, see NodeFormat */
+	public static final int VERSION_FIXED = 0;
+
+	/** delta-encoded keys and varint frequencies, see CompressedNodeFormat */
+	public static final int VERSION_COMPRESSED = 1;
+
+	/** fixed slots as in version 0 behind a versioned header, padded to pages if there is a page size */
+	public static final int VERSION_FIXED_PAGED = 2;
+
+	/** fixed slots of a frequency and a sequence of two longs per key, see WideBTree */
+	public static final int VERSION_WIDE = 3;
+
+	/** size of a version 0 header */
+	public static final int FIXED_SIZE = 12;
+
+	/** size of the header of later versions, and the most bytes read to open a file */
+	public static final int SIZE = 32;
+
+	/** flag of a tree that stores each k-mer as the lesser of itself and its reverse complement */
+	public static final int FLAG_CANONICAL = 1;
+
+	/** smallest and largest page sizes */
+	public static final int MIN_PAGE_SIZE = 1024;
+	public static final int MAX_PAGE_SIZE = 1024 * 1024;
+
+	public int version;
+	public int rootPointer;
+	public int t;
+	public int sequenceLength;
+	public int nodeSize;
+	public int flags;
+	public int pageSize; //0 if the nodes are not aligned to pages
+
+	/**
+	 * @param compressed use compressed nodes instead of fixed slots
+	 * @param canonical the tree stores canonical k-mers, which takes a versioned header
+	 * @param t degree of the tree
+	 * @param sequenceLength the length of the sequence
+	 * @param pageSize size of a page to align the nodes to, 0 to store them unaligned
+	 * @return the header of a new, empty file; the root pointer is set once the root is allocated
+	 */
+	public static BTreeHeader create(boolean compressed, boolean canonical, int t, int sequenceLength, int pageSize) {
+		BTreeHeader header = new BTreeHeader();
+		header.t = t;
+		header.sequenceLength = sequenceLength;
+		header.pageSize = pageSize;
+		header.flags = canonical ? FLAG_CANONICAL : 0;
+		if (pageSize == 0) {
+			if (compressed) {
+				header.version = VERSION_COMPRESSED;
+			} else {
+				header.version = canonical ? VERSION_FIXED_PAGED : VERSION_FIXED; //version 0 has no flags
+			}
+			header.nodeSize = new NodeFormat(t).nodeSize(); //a compressed page is as large as fixed slots of the degree
+		} else {
+			header.version = compressed ? VERSION_COMPRESSED : VERSION_FIXED_PAGED;
+			header.nodeSize = pageSize;
+		}
+		return header;
+	}
+
+	/**
+	 * @param canonical the tree stores canonical k-mers
+	 * @param t degree of the tree
+	 * @param sequenceLength the length of the sequence, more than 31
+	 * @param nodeSize bytes of a node of the degree
+	 * @param pageSize size of a page to align the nodes to, 0 to store them unaligned
+	 * @return the header of a new, empty file of k-mers longer than 31 bases
+	 */
+	public static BTreeHeader createWide(boolean canonical, int t, int sequenceLength, int nodeSize, int pageSize) {
+		BTreeHeader header = new BTreeHeader();
+		header.version = VERSION_WIDE;
+		header.t = t;
+		header.sequenceLength = sequenceLength;
+		header.pageSize = pageSize;
+		header.flags = canonical ? FLAG_CANONICAL : 0;
+		header.nodeSize = pageSize > 0 ? pageSize : nodeSize;
+		return header;
+	}
+
+	/**
+	 * @param pageSize a page size in bytes
+	 * @return true if it is a power of two from MIN_PAGE_SIZE to MAX_PAGE_SIZE
+	 */
+	public static boolean isValidPageSize(int pageSize) {
+		return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Integer.bitCount(pageSize) == 1;
+	}
+
+	/**
+	 * Reads a header of any version.
+	 *
+	 * @param buffer the first bytes of the file from index 0, zero past its end
+	 * @return the header
+	 */
+	public static BTreeHeader read(ByteBuffer buffer) {
+		BTreeHeader header = new BTreeHeader();
+		if (buffer.getInt(0) != MAGIC) {
+			header.version = VERSION_FIXED;
+			header.rootPointer = buffer.getInt(0);
+			header.t = buffer.getInt(4);
+			header.sequenceLength = buffer.getInt(8);
+			header.nodeSize = new NodeFormat(header.t).nodeSize();
+			return header;
+		}
+		header.version = buffer.getInt(4);
+		if (header.version != VERSION_COMPRESSED && header.version != VERSION_FIXED_PAGED && header.version != VERSION_WIDE) {
+			throw new BTreeException("Unsupported BTree file version " + header.version + ".");
+		}
+		header.rootPointer = buffer.getInt(8);
+		header.t = buffer.getInt(12);
+		header.sequenceLength = buffer.getInt(16);
+		header.nodeSize = buffer.getInt(20);
+		header.flags = buffer.getInt(24);
+		header.pageSize = buffer.getInt(28);
+		return header;
+	}
+
+	/**
+	 * Writes the header from index 0 of the buffer, zeroing the padding up
+	 * to the first node.
+	 *
+	 * @param buffer at least size() bytes long
+	 */
+	public void write(ByteBuffer buffer) {
+		if (version == VERSION_FIXED) {
+			buffer.putInt(0, rootPointer);
+			buffer.putInt(4, t);
+			buffer.putInt(8, sequenceLength);
+			return;
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, version);
+		buffer.putInt(8, rootPointer);
+		buffer.putInt(12, t);
+		buffer.putInt(16, sequenceLength);
+		buffer.putInt(20, nodeSize);
+		buffer.putInt(24, flags);
+		buffer.putInt(28, pageSize);
+		for (int i = SIZE; i < size(); i++) {
+			buffer.put(i, (byte) 0);
+		}
+	}
+
+	/**
+	 * @return true if the tree stores each k-mer as the lesser of itself and its reverse complement
+	 */
+	public boolean isCanonical() {
+		return (flags & FLAG_CANONICAL) != 0;
+	}
+
+	/**
+	 * @return number of bytes the header takes, padding included, which is where the first node starts
+	 */
+	public int size() {
+		if (version == VERSION_FIXED) {
+			return FIXED_SIZE;
+		}
+		return pageSize > 0 ? pageSize : SIZE;
+	}
+
+	/**
+	 * @return the layout of the nodes in the file
+	 */
+	public NodeFormat format() {
+		if (version == VERSION_WIDE) {
+			throw new BTreeException("The tree holds k-mers of " + sequenceLength + " bases, which only a WideBTree can open.");
+		}
+		if (version == VERSION_FIXED) {
+			return new NodeFormat(t);
+		} else if (version == VERSION_FIXED_PAGED) {
+			return new NodeFormat(t, nodeSize);
+		}
+		return new CompressedNodeFormat(t, nodeSize, size());
+	}
+}
@@ -0,0 +1,397 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters for the hot paths of a BTree, BTreeReader or PartitionedBTree:
+ * node I/O, cache hits, misses and evictions, splits, tree height and
+ * insert and frequency latency histograms. A tree only records into
+ * metrics given in its BTreeConfig; without them every hook is a single
+ * null check. The counters may be shared by trees used on several threads,
+ * such as the partitions of a PartitionedBTree.
+ *
+ * The metrics are published as an MBean, and can be printed as a periodic
+ * stats line or written as a JSON file.
+ */
+public class BTreeMetrics implements BTreeMetricsMBean {
+
+	private final LongAdder nodeReads = new LongAdder();
+	private final LongAdder nodeWrites = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder cacheEvictions = new LongAdder();
+	private final LongAdder splits = new LongAdder();
+	private final AtomicInteger height = new AtomicInteger();
+	private final Histogram insertLatency = new Histogram();
+	private final Histogram frequencyLatency = new Histogram();
+
+	private ObjectName objectName; //null unless registered
+	private Thread reporter; //null unless printing periodically
+	private boolean printFinal;
+	private String jsonFile;
+
+	/**
+	 * Creates the metrics asked for on the command line: --stats[=seconds]
+	 * prints a stats line to stderr at the end and every given number of
+	 * seconds, --stats-json=file writes the metrics as JSON at the end and
+	 * --jmx publishes them as an MBean.
+	 *
+	 * @param options the command line options
+	 * @param name names the MBean, e.g. the program
+	 * @return the metrics, or null if none of the options was given
+	 */
+	public static BTreeMetrics fromOptions(CommandLineOptions options, String name) {
+		if (!options.has("stats") && !options.has("stats-json") && !options.has("jmx")) {
+			return null;
+		}
+		BTreeMetrics metrics = new BTreeMetrics();
+		if (options.has("stats")) {
+			metrics.printFinal = true;
+			int seconds = options.get("stats", "").isEmpty() ? 0 : options.getInt("stats", 0);
+			if (seconds > 0) {
+				metrics.startReporter(seconds * 1000L);
+			}
+		}
+		metrics.jsonFile = options.get("stats-json", null);
+		if (options.has("jmx")) {
+			metrics.register(name);
+		}
+		return metrics;
+	}
+
+	public void nodeRead(int bytes) {
+		nodeReads.increment();
+		bytesRead.add(bytes);
+	}
+
+	public void nodeWritten(int bytes) {
+		nodeWrites.increment();
+		bytesWritten.add(bytes);
+	}
+
+	public void cacheHit() {
+		cacheHits.increment();
+	}
+
+	public void cacheMiss() {
+		cacheMisses.increment();
+	}
+
+	public void cacheEviction() {
+		cacheEvictions.increment();
+	}
+
+	public void split() {
+		splits.increment();
+	}
+
+	/**
+	 * Records the height of a tree; the largest height recorded is kept.
+	 *
+	 * @param treeHeight number of levels, 1 for a tree that is only a root
+	 */
+	public void height(int treeHeight) {
+		int current = height.get();
+		while (treeHeight > current && !height.compareAndSet(current, treeHeight)) {
+			current = height.get();
+		}
+	}
+
+	/**
+	 * @param nanos duration of one insert
+	 */
+	public void inserted(long nanos) {
+		insertLatency.record(nanos);
+	}
+
+	/**
+	 * @param nanos duration of one frequency lookup
+	 */
+	public void searched(long nanos) {
+		frequencyLatency.record(nanos);
+	}
+
+	public long getNodeReads() {
+		return nodeReads.sum();
+	}
+
+	public long getNodeWrites() {
+		return nodeWrites.sum();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	public long getCacheEvictions() {
+		return cacheEvictions.sum();
+	}
+
+	public double getCacheHitRatio() {
+		long hits = getCacheHits();
+		long lookups = hits + getCacheMisses();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public long getSplits() {
+		return splits.sum();
+	}
+
+	public int getHeight() {
+		return height.get();
+	}
+
+	public long getInserts() {
+		return insertLatency.count();
+	}
+
+	public double getInsertMeanNanos() {
+		return insertLatency.mean();
+	}
+
+	public long getInsertP50Nanos() {
+		return insertLatency.percentile(50);
+	}
+
+	public long getInsertP99Nanos() {
+		return insertLatency.percentile(99);
+	}
+
+	public long getInsertMaxNanos() {
+		return insertLatency.max();
+	}
+
+	public long getFrequencyLookups() {
+		return frequencyLatency.count();
+	}
+
+	public double getFrequencyMeanNanos() {
+		return frequencyLatency.mean();
+	}
+
+	public long getFrequencyP50Nanos() {
+		return frequencyLatency.percentile(50);
+	}
+
+	public long getFrequencyP99Nanos() {
+		return frequencyLatency.percentile(99);
+	}
+
+	public long getFrequencyMaxNanos() {
+		return frequencyLatency.max();
+	}
+
+	public String getStatsLine() {
+		return String.format(Locale.ROOT,
+				"nodes read %,d (%,.1f MB) written %,d (%,.1f MB), cache %.1f%% hits (%,d/%,d) %,d evictions, "
+						+ "%,d splits, height %d, insert %s, frequency %s",
+				getNodeReads(), getBytesRead() / 1e6, getNodeWrites(), getBytesWritten() / 1e6,
+				100 * getCacheHitRatio(), getCacheHits(), getCacheHits() + getCacheMisses(), getCacheEvictions(),
+				getSplits(), getHeight(), insertLatency, frequencyLatency);
+	}
+
+	/**
+	 * @return the metrics as a JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"nodeReads\": ").append(getNodeReads()).append(",\n");
+		json.append("  \"nodeWrites\": ").append(getNodeWrites()).append(",\n");
+		json.append("  \"bytesRead\": ").append(getBytesRead()).append(",\n");
+		json.append("  \"bytesWritten\": ").append(getBytesWritten()).append(",\n");
+		json.append("  \"cacheHits\": ").append(getCacheHits()).append(",\n");
+		json.append("  \"cacheMisses\": ").append(getCacheMisses()).append(",\n");
+		json.append("  \"cacheEvictions\": ").append(getCacheEvictions()).append(",\n");
+		json.append("  \"cacheHitRatio\": ").append(String.format(Locale.ROOT, "%.4f", getCacheHitRatio())).append(",\n");
+		json.append("  \"splits\": ").append(getSplits()).append(",\n");
+		json.append("  \"height\": ").append(getHeight()).append(",\n");
+		json.append("  \"insertLatencyNanos\": ").append(insertLatency.toJson()).append(",\n");
+		json.append("  \"frequencyLatencyNanos\": ").append(frequencyLatency.toJson()).append("\n");
+		return json.append("}\n").toString();
+	}
+
+	/**
+	 * Publishes the metrics as the MBean genebank:type=BTreeMetrics,name=name.
+	 *
+	 * @param name distinguishes the MBean from others in the JVM
+	 */
+	public void register(String name) {
+		try {
+			objectName = new ObjectName("genebank:type=BTreeMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (JMException e) {
+			throw new BTreeException("Could not register the metrics MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Prints the stats line to stderr every period on a daemon thread.
+	 *
+	 * @param periodMillis time between lines
+	 */
+	public void startReporter(final long periodMillis) {
+		reporter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(periodMillis);
+						System.err.println(getStatsLine());
+					}
+				} catch (InterruptedException e) {
+					//stopped by close
+				}
+			}
+		}, "btree-stats");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Stops the periodic stats line, prints the final one and writes the
+	 * JSON file if they were asked for, and unregisters the MBean.
+	 */
+	public void close() {
+		if (reporter != null) {
+			reporter.interrupt();
+			reporter = null;
+		}
+		if (printFinal) {
+			System.err.println(getStatsLine());
+		}
+		if (jsonFile != null) {
+			try {
+				FileWriter out = new FileWriter(jsonFile);
+				out.write(toJson());
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Latency histogram with eight buckets per power of two, so a recorded
+	 * value is known to within an eighth. Recording is lock free.
+	 */
+	private static class Histogram {
+
+		private static final int SUB_BUCKETS = 8;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS * 62);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			buckets.incrementAndGet(bucket(nanos));
+			count.increment();
+			total.add(nanos);
+			long current = max.get();
+			while (nanos > current && !max.compareAndSet(current, nanos)) {
+				current = max.get();
+			}
+		}
+
+		/**
+		 * @return index of the bucket holding the value
+		 */
+		private static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value); //at least 3
+			return ((exponent - 2) << 3) | (int) ((value >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+		}
+
+		/**
+		 * @return the largest value in the bucket
+		 */
+		private static long upperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = (bucket >>> 3) + 2;
+			long lower = (long) (SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << (exponent - 3);
+			return lower + (1L << (exponent - 3)) - 1;
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		double mean() {
+			long n = count();
+			return n == 0 ? 0 : (double) total.sum() / n;
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		/**
+		 * @param percent between 0 and 100
+		 * @return the upper bound of the bucket holding the percentile, 0 if nothing was recorded
+		 */
+		long percentile(double percent) {
+			long n = count();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(n * percent / 100));
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max());
+				}
+			}
+			return max();
+		}
+
+		String toJson() {
+			return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+					count(), mean(), percentile(50), percentile(90), percentile(99), percentile(99.9), max());
+		}
+
+		public String toString() {
+			if (count() == 0) {
+				return "-";
+			}
+			return String.format(Locale.ROOT, "%,d ops p50 %,d ns p99 %,d ns max %,d ns", count(), percentile(50),
+					percentile(99), max());
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * JMX view of BTreeMetrics. Latencies are in nanoseconds; percentiles are
+ * accurate to within an eighth of their value.
+ */
+public interface BTreeMetricsMBean {
+
+	long getNodeReads();
+
+	long getNodeWrites();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getCacheEvictions();
+
+	double getCacheHitRatio();
+
+	long getSplits();
+
+	int getHeight();
+
+	long getInserts();
+
+	double getInsertMeanNanos();
+
+	long getInsertP50Nanos();
+
+	long getInsertP99Nanos();
+
+	long getInsertMaxNanos();
+
+	long getFrequencyLookups();
+
+	double getFrequencyMeanNanos();
+
+	long getFrequencyP50Nanos();
+
+	long getFrequencyP99Nanos();
+
+	long getFrequencyMaxNanos();
+
+	/**
+	 * @return the counters as one line of text
+	 */
+	String getStatsLine();
+}
@@ -0,0 +1,534 @@
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a BTree file that any number of threads may query at
+ * once. Nodes are read with positional FileChannel reads into a per-thread
+ * buffer, or decoded straight from a shared read-only mapping, so there is
+ * no shared file cursor. Decoded nodes are immutable and kept in a cache
+ * split into stripes, each a NodeCache guarded by its own lock, so threads
+ * looking up different nodes rarely wait on each other.
+ */
+public class BTreeReader implements KmerIndex {
+
+	private static final int STRIPES_PER_THREAD = 4;
+	private static final int SCAN_RANGES_PER_THREAD = 4; //so threads that finish early take more ranges
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer map; //null unless mapped; only read with absolute gets
+	private final ThreadLocal<ByteBuffer> buffers;
+	private final ThreadLocal<Scratch> scratch; //full-size arrays a thread decodes into before trimming
+	private final NodeFormat format;
+	private final int nodeSize;
+	private final int t;
+	private final int sequenceLength;
+	private final boolean canonical;
+	private final Node root;
+	private final int height; //number of levels, 1 if the root is a leaf
+	private final int readAhead; //leaves a cursor reads at once
+	private final BTreeMetrics metrics; //null unless the config asks for metrics
+
+	private final NodeCache<Node>[] stripes; //null without a cache
+	private final int stripeMask;
+
+	/**
+	 * Opens a BTree file for concurrent searching
+	 *
+	 * @param fileName name of the BTree file
+	 * @param config cache size, policy and whether to map the file
+	 */
+	@SuppressWarnings("unchecked")
+	public BTreeReader(String fileName, BTreeConfig config) {
+		if (config.cacheSize < 0) {
+			throw new BTreeException("Negative cache size of " + config.cacheSize + " was given");
+		}
+		int rootPointer;
+		try {
+			file = new RandomAccessFile(fileName, "r");
+			channel = file.getChannel();
+			map = config.mapped ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) : null;
+
+			ByteBuffer buffer = ByteBuffer.allocate(BTreeHeader.SIZE);
+			buffer.limit((int) Math.min(BTreeHeader.SIZE, channel.size()));
+			readFully(buffer, 0);
+			BTreeHeader header = BTreeHeader.read(buffer);
+			rootPointer = header.rootPointer;
+			t = header.t;
+			sequenceLength = header.sequenceLength;
+			canonical = header.isCanonical();
+			format = header.format();
+		} catch (FileNotFoundException e) {
+			throw new BTreeException("Could not open BTree file " + fileName + ".");
+		} catch (IOException e) {
+			throw new BTreeException("Could not read BTree file " + fileName + ": " + e.getMessage());
+		}
+		nodeSize = format.nodeSize();
+		metrics = config.metrics;
+		readAhead = Math.max(1, config.readAhead);
+		buffers = new ThreadLocal<ByteBuffer>() {
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(nodeSize);
+			}
+		};
+		scratch = new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch(format.maxKeys());
+			}
+		};
+
+		if (config.cacheSize > 0) {
+			int wanted = STRIPES_PER_THREAD * Runtime.getRuntime().availableProcessors();
+			int count = Integer.highestOneBit(Math.max(1, Math.min(wanted, config.cacheSize)));
+			stripes = (NodeCache<Node>[]) new NodeCache<?>[count];
+			for (int i = 0; i < count; i++) {
+				stripes[i] = NodeCache.create(config.cachePolicy, config.cacheSize / count);
+			}
+			stripeMask = count - 1;
+		} else {
+			stripes = null;
+			stripeMask = 0;
+		}
+		root = read(rootPointer);
+		int levels = 1;
+		for (Node node = root; node.children != null; node = node(node.children[0])) {
+			levels++;
+		}
+		height = levels;
+		if (metrics != null) {
+			metrics.height(levels);
+		}
+	}
+
+	public int sequenceLength() {
+		return sequenceLength;
+	}
+
+	public boolean isCanonical() {
+		return canonical;
+	}
+
+	/**
+	 * @return degree of the tree
+	 */
+	public int degree() {
+		return t;
+	}
+
+	public int frequency(String sequence) {
+		KmerEncoder.checkLength(sequence, sequenceLength);
+		long key = KmerEncoder.encode(sequence);
+		return frequency(canonical ? KmerEncoder.canonical(key, sequenceLength) : key);
+	}
+
+	public int frequency(long sequence) {
+		if (metrics == null) {
+			return search(sequence);
+		}
+		long start = System.nanoTime();
+		int frequency = search(sequence);
+		metrics.searched(System.nanoTime() - start);
+		return frequency;
+	}
+
+	private int search(long sequence) {
+		Node node = root;
+		while (true) {
+			int i = Arrays.binarySearch(node.keys, 0, node.size, sequence);
+			if (i >= 0) {
+				return node.frequencies[i];
+			}
+			if (node.children == null) {
+				return 0;
+			}
+			node = node(node.children[-i - 1]);
+		}
+	}
+
+	public void frequencyBatch(long[] sortedKeys, int from, int to, int[] frequencies) {
+		if (from < to) {
+			frequencyBatch(root, sortedKeys, from, to, frequencies);
+		}
+	}
+
+	private void frequencyBatch(Node node, long[] sortedKeys, int from, int to, int[] result) {
+		int i = from;
+		while (i < to) {
+			int found = Arrays.binarySearch(node.keys, 0, node.size, sortedKeys[i]);
+			if (found >= 0) {
+				result[i++] = node.frequencies[found];
+				continue;
+			}
+
+			int c = -found - 1;
+			int end = i + 1;
+			while (end < to && (c == node.size || sortedKeys[end] < node.keys[c])) {
+				end++;
+			}
+			if (node.children == null) {
+				Arrays.fill(result, i, end, 0);
+			} else {
+				frequencyBatch(node(node.children[c]), sortedKeys, i, end, result);
+			}
+			i = end;
+		}
+	}
+
+	/**
+	 * Walks the keys from the one at or after from. Each cursor belongs to
+	 * one thread. Leaves stored next to each other are read a few at a time
+	 * into the cursor's own buffer and bypass the cache.
+	 */
+	public KmerCursor cursor(long from, long to) {
+		return new Cursor(from, to);
+	}
+
+	/**
+	 * Splits the scan at the keys of the root into a few ranges per thread,
+	 * each key going with the subtree after it, and merges the results.
+	 */
+	public TopKmers topN(int n, int threads) {
+		int ranges = threads <= 1 || root.children == null ? 1 : Math.min(root.size + 1, SCAN_RANGES_PER_THREAD * threads);
+		KmerIndex[] indexes = new KmerIndex[ranges];
+		long[] from = new long[ranges];
+		long[] to = new long[ranges];
+		for (int i = 0; i < ranges; i++) {
+			int first = (int) ((long) (root.size + 1) * i / ranges); //first child of the range
+			int end = (int) ((long) (root.size + 1) * (i + 1) / ranges);
+			indexes[i] = this;
+			from[i] = first == 0 ? 0 : root.keys[first - 1];
+			to[i] = end == root.size + 1 ? Long.MAX_VALUE : root.keys[end - 1] - 1;
+		}
+		return TopKmers.scan(indexes, from, to, n, threads);
+	}
+
+	public void dump(FileWriter dumpFile) {
+		dump(root, dumpFile);
+	}
+
+	private void dump(Node node, FileWriter dumpFile) {
+		for (int i = 0; i <= node.size; i++) {
+			if (node.children != null) {
+				dump(node(node.children[i]), dumpFile);
+			}
+			if (i < node.size) {
+				try {
+					dumpFile.write(node.frequencies[i] + " " + toBases(node.keys[i]) + "\n");
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the file. Queries must not run during or after the call.
+	 */
+	public void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the node at the pointer, from the cache if it holds it
+	 */
+	private Node node(int pointer) {
+		if (stripes == null) {
+			if (metrics != null) {
+				metrics.cacheMiss();
+			}
+			return read(pointer);
+		}
+		NodeCache<Node> stripe = stripes[stripe(pointer)];
+		Node node;
+		synchronized (stripe) {
+			node = stripe.get(pointer);
+		}
+		if (metrics != null) {
+			if (node == null) {
+				metrics.cacheMiss();
+			} else {
+				metrics.cacheHit();
+			}
+		}
+		if (node == null) {
+			node = read(pointer); //outside the lock; a racing thread may read it too
+			Node evicted = null;
+			synchronized (stripe) {
+				if (stripe.get(pointer) == null) {
+					evicted = stripe.put(pointer, node);
+				}
+			}
+			if (evicted != null && metrics != null) {
+				metrics.cacheEviction();
+			}
+		}
+		return node;
+	}
+
+	private int stripe(int pointer) {
+		int hash = (pointer / nodeSize) * 0x9E3779B9;
+		return (hash >>> 16) & stripeMask;
+	}
+
+	/**
+	 * Reads and decodes the node at the pointer. The arrays of the node are
+	 * trimmed to its keys, as a compressed node has room for many more keys
+	 * than it usually holds.
+	 */
+	private Node read(int pointer) {
+		if (map != null) {
+			return decode(map, pointer);
+		}
+		ByteBuffer buffer = buffers.get();
+		buffer.clear();
+		readFully(buffer, pointer);
+		return decode(buffer, 0);
+	}
+
+	/**
+	 * @param buffer holding the page of a node
+	 * @param offset of the page in the buffer
+	 * @return the decoded node
+	 */
+	private Node decode(ByteBuffer buffer, int offset) {
+		Scratch arrays = scratch.get();
+		int size = format.decode(buffer, offset, arrays.keys, arrays.frequencies, arrays.children);
+		if (metrics != null) {
+			metrics.nodeRead(nodeSize);
+		}
+		return new Node(size, Arrays.copyOf(arrays.keys, size), Arrays.copyOf(arrays.frequencies, size),
+				arrays.children[0] == 0 ? null : Arrays.copyOf(arrays.children, size + 1));
+	}
+
+	/**
+	 * Fills the buffer from its position with bytes of the file at the given position.
+	 */
+	private void readFully(ByteBuffer buffer, long position) {
+		int start = buffer.position();
+		try {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position() - start) < 0) {
+					throw new BTreeException("The BTree file ends inside the node at " + position + ".");
+				}
+			}
+		} catch (IOException e) {
+			throw new BTreeException("Could not read the node at " + position + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the sequence as a string of bases
+	 */
+	private String toBases(long sequence) {
+		char[] bases = new char[sequenceLength];
+		for (int i = sequenceLength - 1; i >= 0; i--) {
+			bases[i] = "ACGT".charAt((int) (sequence & 0x3L));
+			sequence >>>= 2;
+		}
+		return new String(bases);
+	}
+
+	/**
+	 * In-order walk of the tree, as in BTree: a stack of the nodes from the
+	 * root to the current key, each with a position where 2i stands for
+	 * child i and 2i + 1 for key i.
+	 */
+	private class Cursor implements KmerCursor {
+
+		private final long to;
+		private final Node[] path = new Node[height];
+		private final int[] positions = new int[height];
+		private int depth;
+		private long key;
+		private int frequency;
+		private final Node[] ahead; //leaves read ahead, the children of aheadParent from aheadFirst on
+		private Node aheadParent;
+		private int aheadFirst;
+		private int aheadCount;
+		private ByteBuffer aheadBuffer; //allocated on the first read ahead
+
+		Cursor(long from, long to) {
+			this.to = to;
+			this.ahead = new Node[map == null ? readAhead : 1]; //a mapping is read ahead by the OS
+			if (from > to) {
+				return;
+			}
+			Node node = root;
+			while (true) {
+				int i = Arrays.binarySearch(node.keys, 0, node.size, from);
+				if (i >= 0 || node.children == null) { //the next key is key i, or the first after the node
+					push(node, i >= 0 ? 2 * i + 1 : -2 * i - 1);
+					return;
+				}
+				i = -i - 1;
+				push(node, 2 * i + 1); //key i follows child i
+				node = descend(node, i);
+			}
+		}
+
+		public boolean next() {
+			while (depth > 0) {
+				Node node = path[depth - 1];
+				int position = positions[depth - 1]++;
+				if (position > 2 * node.size) {
+					depth--;
+				} else if ((position & 1) == 0) {
+					if (node.children != null) {
+						int c = position / 2;
+						if (c > 0 && node.keys[c - 1] >= to) { //the child only holds larger keys
+							break;
+						}
+						push(descend(node, c), 0);
+					}
+				} else {
+					key = node.keys[position / 2];
+					if (key > to) {
+						break;
+					}
+					frequency = node.frequencies[position / 2];
+					return true;
+				}
+			}
+			depth = 0;
+			return false;
+		}
+
+		public long key() {
+			return key;
+		}
+
+		public long high() {
+			return 0;
+		}
+
+		public int frequency() {
+			return frequency;
+		}
+
+		private void push(Node node, int position) {
+			path[depth] = node;
+			positions[depth] = position;
+			depth++;
+		}
+
+		/**
+		 * @return child c of the node, a leaf from the read-ahead if the children are leaves
+		 */
+		private Node descend(Node node, int c) {
+			if (depth != height - 1 || ahead.length == 1) { //the node on top of the stack is not above the leaves
+				return node(node.children[c]);
+			}
+			if (node != aheadParent || c < aheadFirst || c >= aheadFirst + aheadCount) {
+				readAhead(node, c);
+			}
+			return ahead[c - aheadFirst];
+		}
+
+		/**
+		 * Gets the leaves from child first of the parent on, up to the
+		 * read-ahead and not past the end of the range. Leaves in the cache
+		 * are taken from there; runs of the others stored one after another
+		 * are read with a single read.
+		 */
+		private void readAhead(Node parent, int first) {
+			int count = Math.min(ahead.length, parent.size + 1 - first);
+			for (int j = 1; j < count; j++) {
+				if (parent.keys[first + j - 1] >= to) {
+					count = j;
+					break;
+				}
+			}
+			aheadParent = parent;
+			aheadFirst = first;
+			aheadCount = count;
+			if (aheadBuffer == null) {
+				aheadBuffer = ByteBuffer.allocateDirect(ahead.length * nodeSize);
+			}
+
+			int j = 0;
+			while (j < count) {
+				int pointer = parent.children[first + j];
+				Node cached = cached(pointer);
+				if (cached != null) {
+					if (metrics != null) {
+						metrics.cacheHit();
+					}
+					ahead[j++] = cached;
+					continue;
+				}
+				int run = 1;
+				while (j + run < count && parent.children[first + j + run] == pointer + run * nodeSize
+						&& cached(pointer + run * nodeSize) == null) {
+					run++;
+				}
+				aheadBuffer.clear();
+				aheadBuffer.limit(run * nodeSize);
+				readFully(aheadBuffer, pointer);
+				for (int r = 0; r < run; r++) {
+					if (metrics != null) {
+						metrics.cacheMiss();
+					}
+					ahead[j + r] = decode(aheadBuffer, r * nodeSize);
+				}
+				j += run;
+			}
+		}
+
+		/**
+		 * @return the node at the pointer if the cache holds it, otherwise null
+		 */
+		private Node cached(int pointer) {
+			if (stripes == null) {
+				return null;
+			}
+			NodeCache<Node> stripe = stripes[stripe(pointer)];
+			synchronized (stripe) {
+				return stripe.get(pointer);
+			}
+		}
+	}
+
+	/**
+	 * Arrays for the most keys a node can hold, reused by one thread for
+	 * every node it decodes.
+	 */
+	private static class Scratch {
+
+		final long[] keys;
+		final int[] frequencies;
+		final int[] children;
+
+		Scratch(int maxKeys) {
+			keys = new long[maxKeys];
+			frequencies = new int[maxKeys];
+			children = new int[maxKeys + 1];
+		}
+	}
+
+	/**
+	 * An immutable decoded node, safe to share between threads.
+	 */
+	private static class Node {
+
+		final int size;
+		final long[] keys;
+		final int[] frequencies;
+		final int[] children; //null for a leaf
+
+		Node(int size, long[] keys, int[] frequencies, int[] children) {
+			this.size = size;
+			this.keys = keys;
+			this.frequencies = frequencies;
+			this.children = children;
+		}
+	}
+}
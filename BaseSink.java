@@ -0,0 +1,15 @@
+/**
+ * Receives the bases of the sequences read from a GeneBank file.
+ */
+public interface BaseSink {
+
+	/**
+	 * @param base 2-bit code of the base (A=0, C=1, G=2, T=3)
+	 */
+	void add(int base);
+
+	/**
+	 * Marks the end of a sequence; no k-mer spans a reset.
+	 */
+	void reset();
+}
@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file, the blocked gzip format of bgzip, with the blocks
+ * inflated in parallel. Every BGZF block is a gzip member of at most 64 KB
+ * that records its own compressed size, so the caller's thread only reads
+ * the raw blocks and a small pool inflates them; next() hands the inflated
+ * blocks back in file order.
+ */
+public class BgzfReader {
+
+	private static final int FIXED_HEADER_SIZE = 12; //up to and including XLEN
+	private static final int TRAILER_SIZE = 8; //CRC32 and ISIZE
+	private static final int FEXTRA = 4;
+	private static final int MAX_DATA_SIZE = 65536; //most bytes a block may inflate to
+
+	private final FileChannel channel;
+	private final ExecutorService pool;
+	private final ArrayDeque<Future<ByteBuffer>> pending;
+	private final int maxPending;
+	private final ByteBuffer header;
+	private long position;
+	private boolean endOfFile;
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/** one spare byte past the largest block, to notice a block longer than recorded */
+	private static final ThreadLocal<byte[]> OUTPUTS = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[MAX_DATA_SIZE + 1];
+		}
+	};
+
+	/**
+	 * @param channel the BGZF file, read from its start
+	 * @param threads number of inflating threads
+	 */
+	public BgzfReader(FileChannel channel, int threads) {
+		this.channel = channel;
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "bgzf-inflate");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.pending = new ArrayDeque<Future<ByteBuffer>>();
+		this.maxPending = 4 * threads;
+		this.header = ByteBuffer.allocate(FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @param channel a file
+	 * @return true if the file starts with a BGZF block
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isBgzf(FileChannel channel) throws IOException {
+		ByteBuffer start = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+		while (start.hasRemaining()) {
+			if (channel.read(start, start.position()) < 0) {
+				return false;
+			}
+		}
+		return (start.get(0) & 0xff) == 0x1f && (start.get(1) & 0xff) == 0x8b && start.get(2) == 8
+				&& (start.get(3) & FEXTRA) != 0 && blockSize(start, FIXED_HEADER_SIZE, start.getShort(10) & 0xffff) > 0;
+	}
+
+	/**
+	 * Returns the next inflated block.
+	 *
+	 * @return the bytes of the block, or null at the end of the file
+	 * @throws IOException if the file cannot be read or is not valid BGZF
+	 */
+	public ByteBuffer next() throws IOException {
+		while (!endOfFile && pending.size() < maxPending) {
+			final byte[] block = readBlock();
+			if (block == null) {
+				endOfFile = true;
+			} else {
+				pending.add(pool.submit(new Callable<ByteBuffer>() {
+					public ByteBuffer call() throws IOException {
+						return inflate(block);
+					}
+				}));
+			}
+		}
+		Future<ByteBuffer> result = pending.poll();
+		if (result == null) {
+			return null;
+		}
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while inflating.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not inflate a block: " + e.getCause());
+		}
+	}
+
+	/**
+	 * Stops the inflating threads.
+	 */
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Reads the whole next block, header included.
+	 *
+	 * @return the block, or null at the end of the file
+	 */
+	private byte[] readBlock() throws IOException {
+		header.clear();
+		if (!readFully(header, position)) {
+			if (header.position() == 0) {
+				return null;
+			}
+			throw new IOException("The BGZF file ends inside a block header at " + position + ".");
+		}
+		if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b || (header.get(3) & FEXTRA) == 0) {
+			throw new IOException("Not a BGZF block at " + position + ".");
+		}
+		int extraLength = header.getShort(10) & 0xffff;
+		ByteBuffer extra = ByteBuffer.allocate(extraLength).order(ByteOrder.LITTLE_ENDIAN);
+		if (!readFully(extra, position + FIXED_HEADER_SIZE)) {
+			throw new IOException("The BGZF file ends inside a block header at " + position + ".");
+		}
+		int size = blockSize(extra, 0, extraLength);
+		if (size <= FIXED_HEADER_SIZE + extraLength + TRAILER_SIZE) {
+			throw new IOException("The gzip member at " + position + " is not a BGZF block.");
+		}
+
+		ByteBuffer block = ByteBuffer.allocate(size);
+		if (!readFully(block, position)) {
+			throw new IOException("The BGZF file ends inside the block at " + position + ".");
+		}
+		position += size;
+		return block.array();
+	}
+
+	/**
+	 * Finds the BC subfield among the extra fields of a block header.
+	 *
+	 * @return the total size of the block, or 0 if there is no BC subfield
+	 */
+	private static int blockSize(ByteBuffer fields, int offset, int length) {
+		int i = offset;
+		int end = offset + length;
+		while (i + 4 <= end && i + 4 <= fields.limit()) {
+			int subfieldLength = fields.getShort(i + 2) & 0xffff;
+			if (fields.get(i) == 'B' && fields.get(i + 1) == 'C' && subfieldLength == 2 && i + 6 <= fields.limit()) {
+				return (fields.getShort(i + 4) & 0xffff) + 1;
+			}
+			i += 4 + subfieldLength;
+		}
+		return 0;
+	}
+
+	/**
+	 * Inflates one block into the thread's output buffer and checks it
+	 * against its CRC32 and size, which must not be more than 64 KB.
+	 *
+	 * @return a copy of the inflated bytes, as the output buffer is reused by the next block
+	 */
+	private static ByteBuffer inflate(byte[] block) throws IOException {
+		ByteBuffer trailer = ByteBuffer.wrap(block, block.length - TRAILER_SIZE, TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		int crc = trailer.getInt();
+		int size = trailer.getInt();
+		int dataStart = FIXED_HEADER_SIZE + ((block[10] & 0xff) | (block[11] & 0xff) << 8);
+		if (size < 0 || size > MAX_DATA_SIZE) {
+			throw new IOException("A BGZF block records " + (size & 0xFFFFFFFFL) + " inflated bytes, more than "
+					+ MAX_DATA_SIZE + ".");
+		}
+
+		byte[] data = OUTPUTS.get();
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(block, dataStart, block.length - TRAILER_SIZE - dataStart);
+		try {
+			int length = 0;
+			while (!inflater.finished() && length <= size) {
+				int n = inflater.inflate(data, length, size + 1 - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+			if (length != size || !inflater.finished()) {
+				throw new IOException("A BGZF block does not inflate to its recorded size.");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt BGZF block: " + e.getMessage());
+		}
+
+		CRC32 check = new CRC32();
+		check.update(data, 0, size);
+		if ((int) check.getValue() != crc) {
+			throw new IOException("CRC mismatch in a BGZF block.");
+		}
+		return ByteBuffer.wrap(Arrays.copyOf(data, size));
+	}
+
+	/**
+	 * Fills the buffer from the file at the given position.
+	 *
+	 * @return false if the file ended first
+	 */
+	private boolean readFully(ByteBuffer buffer, long at) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, at + buffer.position() - start) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
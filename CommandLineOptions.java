@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Separates the optional --name or --name=value switches from the positional
+ * arguments of GeneBankCreateBTree and GeneBankSearch.
+ */
+public class CommandLineOptions {
+
+	private HashMap<String, String> options;
+	private String[] positional;
+
+	/**
+	 * @param args command line arguments
+	 */
+	public CommandLineOptions(String[] args) {
+		options = new HashMap<String, String>();
+		ArrayList<String> rest = new ArrayList<String>();
+
+		for (String arg : args) {
+			if (arg.startsWith("--") && arg.length() > 2) {
+				int equals = arg.indexOf('=');
+				if (equals < 0) {
+					options.put(arg.substring(2), "");
+				} else {
+					options.put(arg.substring(2, equals), arg.substring(equals + 1));
+				}
+			} else {
+				rest.add(arg);
+			}
+		}
+		positional = rest.toArray(new String[rest.size()]);
+	}
+
+	/**
+	 * @return the arguments that are not options
+	 */
+	public String[] positional() {
+		return positional;
+	}
+
+	/**
+	 * @param name of the option
+	 * @return true if the option was given
+	 */
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	/**
+	 * @param name of the option
+	 * @param defaultValue returned if the option was not given
+	 * @return the value of the option
+	 */
+	public String get(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * @param name of the option
+	 * @param defaultValue returned if the option was not given
+	 * @return the value of the option as an integer
+	 */
+	public int getInt(String name, int defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new BTreeException("The option --" + name + " needs a valid integer, " + value + " was given.");
+		}
+	}
+
+	/**
+	 * @param name of the option
+	 * @param defaultValue returned if the option was not given
+	 * @return the value of the option as a double
+	 */
+	public double getDouble(String name, double defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new BTreeException("The option --" + name + " needs a valid number, " + value + " was given.");
+		}
+	}
+}
@@ -0,0 +1,234 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Node layout of version 1 BTree files: a page of varints. The page starts
+ * with the number of keys shifted left once, the low bit set for a leaf.
+ * Each key follows as its difference from the previous key, the first key
+ * as it is, together with its frequency; keys are distinct and ascending so
+ * every difference is positive. An internal node ends with its size + 1
+ * children, each stored as the index of the page it points at. The rest of
+ * the page is zero.
+ * <p>
+ * The k-mers of one node lie close together and most frequencies are
+ * small, so a key usually takes two or three bytes instead of twelve, and a
+ * page holds several times as many keys as fixed slots of the same size.
+ * Since the number of keys a page holds depends on the keys, a node is full
+ * when its encoded size leaves less room than one more insert can take.
+ */
+public class CompressedNodeFormat extends NodeFormat {
+
+	/** smallest page that still splits into two nodes with room to spare */
+	public static final int MIN_NODE_SIZE = 256;
+
+	private static final int MAX_KEY_BYTES = 9; //a varint of up to 63 bits
+	private static final int MAX_INT_BYTES = 5;
+	private static final int MAX_ENTRY_BYTES = MAX_KEY_BYTES + 2 * MAX_INT_BYTES; //key, frequency and child
+	private static final int NODE_OVERHEAD = 2 * MAX_INT_BYTES; //size and the last child
+
+	/**
+	 * Room one insertNonfull may take: a key with its child, a byte more for
+	 * the size, and a frequency growing by up to four bytes.
+	 */
+	private static final int SLACK = MAX_ENTRY_BYTES + 1 + MAX_INT_BYTES - 1;
+
+	private final int firstNode; //position of the first node, the size of the header
+	private final int maxKeys;
+	private final ThreadLocal<byte[]> pages; //copies of pages being decoded, one per thread
+
+	/**
+	 * @param t degree of the tree, kept for the header only; 32t - 12 may not exceed the node size
+	 * @param nodeSize number of bytes a page takes in the file
+	 * @param firstNode position of the first page, which child indexes count from
+	 */
+	public CompressedNodeFormat(int t, int nodeSize, int firstNode) {
+		super(t, nodeSize);
+		if (nodeSize < MIN_NODE_SIZE) {
+			throw new BTreeException("Compressed nodes need at least " + MIN_NODE_SIZE + " bytes, a degree of at least "
+					+ (MIN_NODE_SIZE + 12 + 31) / 32 + ". " + nodeSize + " bytes were given.\n");
+		}
+		this.firstNode = firstNode;
+		this.maxKeys = (nodeSize - 1) / 2; //a leaf of one byte differences and frequencies
+		this.pages = new ThreadLocal<byte[]>() {
+			protected byte[] initialValue() {
+				return new byte[nodeSize()];
+			}
+		};
+	}
+
+	public int maxKeys() {
+		return maxKeys;
+	}
+
+	/**
+	 * Copies the page into an array first; decoding varints from an array is
+	 * several times faster than one absolute get per byte.
+	 */
+	public int decode(ByteBuffer page, int offset, long[] keys, int[] frequencies, int[] children) {
+		byte[] bytes = pages.get();
+		ByteBuffer source = page.duplicate(); //the page may be shared, e.g. a mapping
+		source.limit(offset + nodeSize);
+		source.position(offset);
+		source.get(bytes);
+
+		int[] position = { 0 };
+		long header = readVarint(bytes, position);
+		int size = (int) (header >>> 1);
+		boolean leaf = (header & 1) != 0;
+
+		long key = 0;
+		for (int i = 0; i < size; i++) {
+			key += readVarint(bytes, position);
+			keys[i] = key;
+			frequencies[i] = (int) readVarint(bytes, position);
+		}
+
+		if (leaf) {
+			children[0] = 0;
+			return size;
+		}
+		for (int i = 0; i < size + 1; i++) {
+			children[i] = (int) (firstNode + readVarint(bytes, position) * nodeSize);
+		}
+		return size;
+	}
+
+	public void encode(ByteBuffer page, int offset, int size, long[] keys, int[] frequencies, int[] children, boolean leaf) {
+		int position = writeVarint(page, offset, (long) size << 1 | (leaf ? 1 : 0));
+		long previous = 0;
+		for (int i = 0; i < size; i++) {
+			position = writeVarint(page, position, keys[i] - previous);
+			position = writeVarint(page, position, frequencies[i] & 0xFFFFFFFFL);
+			previous = keys[i];
+		}
+		if (!leaf) {
+			for (int i = 0; i < size + 1; i++) {
+				position = writeVarint(page, position, pageIndex(children[i]));
+			}
+		}
+
+		int end = offset + nodeSize;
+		while (position < end) {
+			page.put(position++, (byte) 0);
+		}
+	}
+
+	public int encodedSize(int size, long[] keys, int[] frequencies, int[] children, boolean leaf) {
+		int bytes = varintSize((long) size << 1);
+		long previous = -1;
+		for (int i = 0; i < size; i++) {
+			bytes += entrySize(previous, keys[i], frequencies[i], leaf ? 0 : children[i]);
+			previous = keys[i];
+		}
+		if (!leaf) {
+			bytes += varintSize(pageIndex(children[size]));
+		}
+		return bytes;
+	}
+
+	public int insertedSize(int size, long[] keys, int[] frequencies, int[] children, boolean leaf, int index) {
+		int change = varintSize((long) size << 1) - varintSize((long) (size - 1) << 1);
+		long previous = index == 0 ? -1 : keys[index - 1];
+		change += entrySize(previous, keys[index], frequencies[index], 0);
+		if (index + 1 < size) { //the next key is now stored relative to the inserted one
+			long next = keys[index + 1];
+			change += varintSize(next - keys[index]) - varintSize(previous < 0 ? next : next - previous);
+		}
+		if (!leaf) {
+			change += varintSize(pageIndex(children[index + 1]));
+		}
+		return change;
+	}
+
+	public int frequencyChange(int oldFrequency, int newFrequency) {
+		return varintSize(newFrequency & 0xFFFFFFFFL) - varintSize(oldFrequency & 0xFFFFFFFFL);
+	}
+
+	public boolean isFull(int size, int encodedSize) {
+		return size >= maxKeys || encodedSize + SLACK > nodeSize;
+	}
+
+	/**
+	 * Splits at the key where half of the encoded bytes lie before it, so
+	 * both halves have room even if the keys differ in size.
+	 */
+	public int splitIndex(int size, long[] keys, int[] frequencies, int[] children, boolean leaf) {
+		int half = encodedSize(size, keys, frequencies, children, leaf) / 2;
+		int bytes = 0;
+		long previous = -1;
+		int i = 0;
+		while (i < size - 2) {
+			bytes += entrySize(previous, keys[i], frequencies[i], leaf ? 0 : children[i]);
+			if (bytes >= half) {
+				break;
+			}
+			previous = keys[i];
+			i++;
+		}
+		return Math.max(1, i);
+	}
+
+	public int fillKeys(double fillFactor) {
+		return 0;
+	}
+
+	public int fillBytes(double fillFactor) {
+		int room = nodeSize - SLACK - NODE_OVERHEAD;
+		return Math.max(2 * MAX_ENTRY_BYTES, (int) (fillFactor * room));
+	}
+
+	public int entrySize(long previousKey, long key, int frequency, int child) {
+		int bytes = varintSize(previousKey < 0 ? key : key - previousKey) + varintSize(frequency & 0xFFFFFFFFL);
+		if (child != 0) {
+			bytes += varintSize(pageIndex(child));
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return index of the page at a child pointer
+	 */
+	private long pageIndex(int pointer) {
+		return (pointer - firstNode) / nodeSize;
+	}
+
+	/**
+	 * @return number of bytes of the varint of a value that is not negative
+	 */
+	private static int varintSize(long value) {
+		return (63 - Long.numberOfLeadingZeros(value | 1)) / 7 + 1;
+	}
+
+	/**
+	 * Reads the varint at position[0], seven bits per byte, low bits first,
+	 * and moves position[0] past it.
+	 */
+	private static long readVarint(byte[] page, int[] position) {
+		int p = position[0];
+		byte b = page[p++];
+		if (b >= 0) { //most differences and frequencies take one byte
+			position[0] = p;
+			return b;
+		}
+		long value = b & 0x7F;
+		int shift = 7;
+		do {
+			b = page[p++];
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		position[0] = p;
+		return value;
+	}
+
+	/**
+	 * @return the position after the varint
+	 */
+	private static int writeVarint(ByteBuffer page, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			page.put(position++, (byte) (value | 0x80));
+			value >>>= 7;
+		}
+		page.put(position++, (byte) value);
+		return position;
+	}
+}
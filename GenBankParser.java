@@ -0,0 +1,264 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming parser for the sequences of a GenBank file. The file is read
+ * through a FileChannel into a direct buffer and scanned byte by byte; a
+ * lookup table classifies each byte, so the ORIGIN sections are turned into
+ * 2-bit base codes for a BaseSink without decoding characters, splitting
+ * lines or building strings. Gzip and BGZF compressed files are inflated
+ * on the fly, BGZF blocks in parallel.
+ *
+ * A sequence starts on the line after a line beginning with the keyword
+ * ORIGIN, followed by whitespace or the end of the line, and ends at a line
+ * beginning with //. Inside a sequence, position numbers and whitespace are
+ * skipped, and any other character, such as the ambiguous base n, resets the
+ * sink so no k-mer spans it.
+ */
+public class GenBankParser {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final int CHUNK_SIZE = 1 << 14;
+	private static final byte[] ORIGIN = { 'O', 'R', 'I', 'G', 'I', 'N' };
+
+	private static final byte SKIP = -1; //digits and whitespace
+	private static final byte OTHER = -2; //anything else breaks the sequence
+	private static final byte NEWLINE = -3;
+	private static final byte SLASH = -4;
+	private static final byte[] CLASS = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int code = KmerEncoder.encode((char) i);
+			CLASS[i] = code >= 0 ? (byte) code : OTHER;
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			CLASS[c] = SKIP;
+		}
+		CLASS[' '] = SKIP;
+		CLASS['\t'] = SKIP;
+		CLASS['\r'] = SKIP;
+		CLASS['\n'] = NEWLINE;
+		CLASS['/'] = SLASH;
+	}
+
+	private final BaseSink sink;
+	private final ByteBuffer buffer;
+	private final byte[] chunk;
+	private int inflateThreads = 1;
+
+	private boolean inSequence; //between an ORIGIN line and //
+	private int column; //bytes seen on the current line
+	private int matched; //leading bytes of the current line matching ORIGIN, or slashes in a sequence
+	private long bytes;
+
+	/**
+	 * @param sink receives the bases of every sequence, e.g. a KmerEncoder
+	 */
+	public GenBankParser(BaseSink sink) {
+		this.sink = sink;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.chunk = new byte[CHUNK_SIZE];
+	}
+
+	/**
+	 * @param threads number of threads inflating BGZF input, at least 1
+	 */
+	public void setInflateThreads(int threads) {
+		inflateThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Parses a whole file, which may be plain, gzip or BGZF compressed.
+	 * BGZF blocks are inflated in parallel; other gzip files on the
+	 * calling thread.
+	 *
+	 * @param fileName name of the GenBank file
+	 * @throws IOException if the file cannot be read
+	 */
+	public void parse(String fileName) throws IOException {
+		FileInputStream in = new FileInputStream(fileName);
+		try {
+			FileChannel channel = in.getChannel();
+			if (BgzfReader.isBgzf(channel)) {
+				parseBgzf(channel);
+			} else if (isGzip(channel)) {
+				parse(new GZIPInputStream(in, BUFFER_SIZE));
+			} else {
+				parse(channel);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parses BGZF compressed data, inflating the blocks in parallel.
+	 *
+	 * @param channel the BGZF file
+	 * @throws IOException if the file cannot be read or is not valid BGZF
+	 */
+	public void parseBgzf(FileChannel channel) throws IOException {
+		BgzfReader reader = new BgzfReader(channel, inflateThreads);
+		try {
+			ByteBuffer block = reader.next();
+			while (block != null) {
+				scan(block);
+				block = reader.next();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Parses everything the stream returns, e.g. a GZIPInputStream.
+	 *
+	 * @param in the GenBank data
+	 * @throws IOException if the stream cannot be read
+	 */
+	public void parse(InputStream in) throws IOException {
+		byte[] data = new byte[BUFFER_SIZE];
+		int n = in.read(data);
+		while (n >= 0) {
+			scan(ByteBuffer.wrap(data, 0, n));
+			n = in.read(data);
+		}
+	}
+
+	/**
+	 * @return true if the file starts with the gzip magic bytes
+	 */
+	private static boolean isGzip(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(2);
+		while (magic.hasRemaining()) {
+			if (channel.read(magic, magic.position()) < 0) {
+				return false;
+			}
+		}
+		return (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b;
+	}
+
+	/**
+	 * Parses everything from the channel's position to its end.
+	 *
+	 * @param channel the GenBank data
+	 * @throws IOException if the channel cannot be read
+	 */
+	public void parse(FileChannel channel) throws IOException {
+		buffer.clear();
+		while (channel.read(buffer) >= 0) {
+			buffer.flip();
+			scan(buffer);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Parses the remaining bytes of a buffer. A file may be handed over in
+	 * pieces of any size; the state carries over between calls.
+	 *
+	 * @param data the next bytes of the file
+	 */
+	public void scan(ByteBuffer data) {
+		bytes += data.remaining();
+		while (data.hasRemaining()) {
+			int length = Math.min(data.remaining(), chunk.length);
+			data.get(chunk, 0, length);
+			scan(chunk, length);
+		}
+	}
+
+	/**
+	 * Scans bytes copied out of the buffer; array access lets the JIT drop
+	 * the buffer's bounds and state checks from the per-byte loop.
+	 */
+	private void scan(byte[] data, int length) {
+		int i = 0;
+		while (i < length) {
+			if (inSequence) {
+				i = scanSequence(data, i, length);
+			} else {
+				i = scanHeader(data, i, length);
+			}
+		}
+	}
+
+	/**
+	 * Looks for a line starting with the ORIGIN keyword; a longer word such
+	 * as ORIGINAL does not count.
+	 *
+	 * @return index after the last byte handled
+	 */
+	private int scanHeader(byte[] data, int i, int length) {
+		for (; i < length; i++) {
+			byte b = data[i];
+			if (b == '\n') {
+				column = 0;
+				if (matched == ORIGIN.length) {
+					matched = 0;
+					inSequence = true;
+					return i + 1;
+				}
+				matched = 0;
+			} else {
+				if (column == matched && column < ORIGIN.length && b == ORIGIN[column]) {
+					matched++;
+				} else if (column == ORIGIN.length && matched == ORIGIN.length && b != ' ' && b != '\t' && b != '\r') {
+					matched = 0; //the keyword runs on into a longer word
+				}
+				column++;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Emits the bases of the sequence until a line starting with //.
+	 *
+	 * @return index after the last byte handled
+	 */
+	private int scanSequence(byte[] data, int i, int length) {
+		for (; i < length; i++) {
+			int code = CLASS[data[i] & 0xff];
+			if (code >= 0) {
+				sink.add(code);
+			} else if (code == NEWLINE) {
+				column = 0;
+				matched = 0;
+				continue;
+			} else if (code == SLASH) {
+				sink.reset(); //not a base, whether or not it starts the // that ends the record
+				if (column == matched && ++matched == 2) { //a line starting with //
+					endRecord();
+					inSequence = false;
+					matched = 0;
+					column++;
+					return i + 1;
+				}
+			} else if (code == OTHER) {
+				sink.reset();
+			}
+			column++;
+		}
+		return i;
+	}
+
+	/**
+	 * Called at the // that ends a record; resets the sink.
+	 */
+	protected void endRecord() {
+		sink.reset();
+	}
+
+	/**
+	 * @return number of bytes parsed so far
+	 */
+	public long bytesParsed() {
+		return bytes;
+	}
+}
@@ -1,35 +1,200 @@
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.StringTokenizer;
 
 public class GeneBankCreateBTree {
 
 	private static final String COMMANDLINE_INSTRUCTIONS = "This program requires the following startup parameters.\n";
 	private static final String FIRST_PARAMETER_ERROR = "The first commandline arguments needs to be either 0 or 1.";
 	private static final String SECOND_PARAMETER_ERROR = "The second commandline argument needs to be a integer greater or equal to zero.";
-	private static final String THIRD_PARAMETER_ERROR = "The fourth commandline argument needs to be a integer between 1 and 31 (inclusive).";
+	private static final String THIRD_PARAMETER_ERROR = "The fourth commandline argument needs to be a integer between 1 and 63 (inclusive), "
+			+ "or several distinct ones separated by commas. Sequences of 32 to 63 bases take two longs per key.";
+	private static final String WIDE_OPTIONS_ERROR = "Sequences longer than 31 bases are inserted one at a time into fixed slots; "
+			+ "--bulk, --count-memory, --pipeline, --partitions and --compressed need 31 bases or fewer.";
+	private static final String APPEND_ERROR = "--append adds to one existing tree, whose file sets its format and partitioning; "
+			+ "it takes a single sequence length and no --bulk, --compressed, --canonical, --page-size or --partitions.";
 	private static final String PARSE_INT_ERROR = "The cache and debug need to be valid integers.";
 	private static final String DEBUG_ERROR = "The debug can only be set to 0 or 1.";
 	private static final String FILE_NOT_FOUND = "Unable to locate or read file: ";
 
-	private DoubleQueue newQueue;
-	private BTree newBTree;
+	private BaseSink bases; //where processFile sends the bases
+	private KmerSink kmers; //where the encoded k-mers go
+	private KmerRunSorter sorter;
+	private KmerCounter counter;
+	private IngestPipeline pipeline;
+	private BTree newBTree; //null when partitioned
+	private PartitionedBTree partitionedBTree; //null unless partitioned
+	private WideBTree wideBTree; //null unless the sequences are longer than 31 bases
+	private KmerIndex index; //whichever of the two is built
+	private String btreeFile;
 	private int debug;
+	private int inflateThreads = 1; //threads inflating BGZF input
+	private boolean printStats; //print the pipeline's throughput, set when metrics are on
 	
-	private GeneBankCreateBTree (int degree, int sequenceLength, int cacheSize, String fileName, int debugValue) {
-		newBTree = new BTree(degree, sequenceLength, cacheSize, (fileName + ".newBTree.data." + sequenceLength + "." + degree));
-		newQueue = new DoubleQueue(sequenceLength, newBTree);
+	private GeneBankCreateBTree (int degree, int sequenceLength, BTreeConfig config, String fileName, int debugValue,
+			int prefixLength, int threads) {
+		btreeFile = fileName + ".newBTree.data." + sequenceLength + "." + degree;
+		if (sequenceLength > 31) {
+			wideBTree = new WideBTree(degree, sequenceLength, btreeFile, config);
+			index = wideBTree;
+		} else if (prefixLength > 0) {
+			partitionedBTree = new PartitionedBTree(btreeFile, prefixLength, degree, sequenceLength, config, threads);
+			index = partitionedBTree;
+			kmers = partitionedBTree;
+		} else {
+			newBTree = new BTree(degree, sequenceLength, btreeFile, config);
+			index = newBTree;
+			kmers = newBTree;
+		}
+		debug = debugValue;
+		printStats = config.metrics != null;
+	}
+	
+	/**
+	 * Opens an existing tree read-write to insert the k-mers of more records.
+	 * The file decides the format, degree and partitioning.
+	 * 
+	 * @param treeFile the tree file, or the manifest of a partitioned tree
+	 * @param degree 0, or the degree of the tree
+	 * @param sequenceLength the length of the k-mers, which must match the tree's
+	 * @param config cache and storage settings, with append set
+	 * @param debugValue debug level
+	 * @param threads insertion threads for a partitioned tree
+	 */
+	private GeneBankCreateBTree(String treeFile, int degree, int sequenceLength, BTreeConfig config, int debugValue,
+			int threads) {
+		btreeFile = treeFile;
+		if (PartitionedBTree.isManifest(treeFile)) {
+			partitionedBTree = new PartitionedBTree(treeFile, config, threads);
+			index = partitionedBTree;
+			kmers = partitionedBTree;
+		} else if (WideBTree.isWide(treeFile)) {
+			wideBTree = new WideBTree(treeFile, config);
+			index = wideBTree;
+		} else {
+			newBTree = new BTree(treeFile, config);
+			index = newBTree;
+			kmers = newBTree;
+		}
 		debug = debugValue;
+		printStats = config.metrics != null;
+		if (index.sequenceLength() != sequenceLength) {
+			int stored = index.sequenceLength();
+			index.close();
+			throw new BTreeException(treeFile + " holds sequences of " + stored + " bases, not " + sequenceLength + ".");
+		}
+		if (degree != 0 && index.degree() != degree) {
+			int stored = index.degree();
+			index.close();
+			throw new BTreeException(treeFile + " has degree " + stored + ", not " + degree + ". Give 0 to take the tree's.");
+		}
+	}
+	
+	/**
+	 * Creates a parser that sends the bases to a sink without building a tree.
+	 */
+	private GeneBankCreateBTree(BaseSink bases, int debugValue) {
+		this.bases = bases;
+		this.debug = debugValue;
+	}
+	
+	/**
+	 * Parses a GenBank file without building a tree, e.g. to measure the
+	 * parser on its own.
+	 * 
+	 * @param fileName name of the GenBank file
+	 * @param bases receives the bases of every sequence, reset at the end of each
+	 */
+	static void parse(String fileName, BaseSink bases) {
+		processFile(new GeneBankCreateBTree(bases, -1), fileName);
 	}
 	
-	private void add(String s) {
-		newQueue.add(s);
+	/**
+	 * Counts the k-mers into sorted runs instead of inserting them, so the
+	 * tree can be bulk loaded once the whole file is read.
+	 * 
+	 * @param memoryBytes memory for buffering k-mers before spilling a run to disk
+	 */
+	private void useBulkLoad(long memoryBytes) {
+		if (newBTree == null) {
+			throw new BTreeException("Bulk loading is not supported for partitioned trees.");
+		}
+		File directory = new File(btreeFile).getAbsoluteFile().getParentFile();
+		sorter = new KmerRunSorter(memoryBytes, directory);
+		kmers = sorter;
 	}
 	
-	private void resetQueue() {
-		newQueue.emptyQueue();
+	/**
+	 * Counts the k-mers in memory and inserts them in sorted batches with
+	 * their counts instead of one at a time.
+	 * 
+	 * @param memoryBytes memory for the counts before a batch is flushed
+	 */
+	private void useCounter(long memoryBytes) {
+		counter = new KmerCounter(memoryBytes, (KmerBatchSink) kmers);
+		kmers = counter;
+	}
+	
+	/**
+	 * Connects the parser to the k-mer destination, either directly through
+	 * an encoder or through a pipeline that encodes and inserts on their own
+	 * threads.
+	 * 
+	 * @param pipelined run encoding and insertion on separate threads
+	 */
+	private void startIngest(boolean pipelined) {
+		if (wideBTree != null) {
+			bases = new WideKmerEncoder(index.sequenceLength(), index.isCanonical(), wideBTree);
+		} else if (pipelined) {
+			pipeline = new IngestPipeline(index.sequenceLength(), index.isCanonical(), kmers);
+			bases = pipeline.input();
+		} else {
+			bases = new KmerEncoder(index.sequenceLength(), index.isCanonical(), kmers);
+		}
+	}
+	
+	/**
+	 * Waits for the pipeline, then flushes the counted k-mers, or builds the
+	 * tree from the sorted runs when bulk loading.
+	 * 
+	 * @param fillFactor fraction of each node to fill
+	 */
+	private void finish(double fillFactor) {
+		if (pipeline != null) {
+			pipeline.finish();
+			if (printStats) {
+				System.err.println(pipeline.stats());
+			}
+			pipeline = null;
+		}
+		if (counter != null) {
+			counter.flush();
+			counter = null;
+		}
+		if (sorter != null) {
+			try {
+				newBTree.bulkLoad(sorter.finish(), fillFactor);
+			} catch (IOException err) {
+				debugPrint(err.toString());
+			}
+			sorter = null;
+		}
+	}
+	
+	/**
+	 * Dumps the contents of the tree into a file
+	 * 
+	 * @param fileName name of the dump file
+	 */
+	private void dump(String fileName) {
+		try {
+			FileWriter dumpFile = new FileWriter(fileName);
+			index.dump(dumpFile);
+			dumpFile.close();
+		} catch (IOException err) {
+			debugPrint(err.toString());
+		}
 	}
 	
 	private void debugPrint(String err) {
@@ -42,7 +207,38 @@ public class GeneBankCreateBTree {
 	public static void main (String[] args) {		
 		boolean withCache;
 		String gbkFile;
-		int cacheSize = -1, degree = -1, sequenceLength = -1, debugLevel = -1;
+		int cacheSize = -1, degree = -1, debugLevel = -1;
+		int[] sequenceLengths = null;
+		
+		// Separate the --name[=value] options from the positional arguments
+		CommandLineOptions options = new CommandLineOptions(args);
+		args = options.positional();
+		BTreeConfig config = new BTreeConfig();
+		config.cachePolicy = NodeCache.Policy.parse(options.get("cache-policy", "lru"));
+		config.pinnedMemory = options.getInt("pinned-memory", 64) * 1024L * 1024L;
+		config.compressed = options.has("compressed");
+		config.canonical = options.has("canonical");
+		config.pageSize = options.getInt("page-size", 0) * 1024;
+		config.mapped = options.has("mmap");
+		if (options.has("write-behind")) { //--write-behind alone queues up to 16 MB of nodes
+			config.writeBehind = (options.get("write-behind", "").isEmpty() ? 16 : options.getInt("write-behind", 16)) * 1024L * 1024L;
+		}
+		BTreeMetrics metrics = BTreeMetrics.fromOptions(options, "GeneBankCreateBTree");
+		config.metrics = metrics;
+		boolean bulk = options.has("bulk");
+		long bulkMemory = options.getInt("bulk-memory", 512) * 1024L * 1024L;
+		double fillFactor = options.getDouble("fill", 1.0);
+		long countMemory = options.getInt("count-memory", 0) * 1024L * 1024L;
+		boolean pipelined = options.has("pipeline");
+		int prefixLength = options.getInt("partitions", 0);
+		int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+		int inflateThreads = options.getInt("inflate-threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+		String appendFile = options.get("append", null);
+		config.append = appendFile != null;
+		if (config.append && !new File(appendFile).isFile()) {
+			System.err.println(FILE_NOT_FOUND + appendFile);
+			System.exit(1);
+		}
 		
 		// Parses command line arguments
 		// Verify correct number of arguments
@@ -82,19 +278,38 @@ public class GeneBankCreateBTree {
 		// Parse argument three
 		gbkFile = args[2];
 		
-		// Parse argument four
-		int arg4 = -1;
-		try {
-			arg4 = Integer.parseInt(args[3]); 
-		} catch (NumberFormatException e) {
-			System.err.println(THIRD_PARAMETER_ERROR);
-			System.exit(1);
-		}
-		if (arg4 < 1 || arg4 > 31) {
-			System.err.println(THIRD_PARAMETER_ERROR);
-			System.exit(1);
+		// Parse argument four, one sequence length or several separated by commas
+		String[] lengths = args[3].split(",");
+		sequenceLengths = new int[lengths.length];
+		for (int i = 0; i < lengths.length; i++) {
+			int arg4 = -1;
+			try {
+				arg4 = Integer.parseInt(lengths[i]); 
+			} catch (NumberFormatException e) {
+				System.err.println(THIRD_PARAMETER_ERROR);
+				System.exit(1);
+			}
+			if (arg4 < 1 || arg4 > WideKmerEncoder.MAX_SEQUENCE_LENGTH) {
+				System.err.println(THIRD_PARAMETER_ERROR);
+				System.exit(1);
+			}
+			for (int j = 0; j < i; j++) {
+				if (sequenceLengths[j] == arg4) { //both would write the same file
+					System.err.println(THIRD_PARAMETER_ERROR);
+					System.exit(1);
+				}
+			}
+			sequenceLengths[i] = arg4;
+			if (config.append && (lengths.length > 1 || bulk || config.compressed || config.canonical
+					|| options.has("page-size") || options.has("partitions"))) {
+				System.err.println(APPEND_ERROR);
+				System.exit(1);
+			}
+			if (arg4 > 31 && (bulk || countMemory > 0 || pipelined || prefixLength > 0 || config.compressed)) {
+				System.err.println(WIDE_OPTIONS_ERROR);
+				System.exit(1);
+			}
 		}
-		sequenceLength = arg4;
 		
 		int arg5 = -1, arg6 = -1;
 		switch(args.length){
@@ -148,87 +363,86 @@ public class GeneBankCreateBTree {
 			cacheSize = 0;
 		}
 		
-		GeneBankCreateBTree thisBank = new GeneBankCreateBTree(degree, sequenceLength, cacheSize, gbkFile, debugLevel);
+		config.cacheSize = cacheSize;
+		// One tree per sequence length, all fed by a single parse of the file. The
+		// memory for sorting or counting is shared out; with --pipeline every tree
+		// is encoded and inserted on threads of its own.
+		int trees = sequenceLengths.length;
+		GeneBankCreateBTree[] banks = new GeneBankCreateBTree[trees];
+		BaseSink[] treeBases = new BaseSink[trees];
+		for (int i = 0; i < trees; i++) {
+			if (config.append) {
+				banks[i] = new GeneBankCreateBTree(appendFile, degree, sequenceLengths[i], config, debugLevel, threads);
+			} else {
+				banks[i] = new GeneBankCreateBTree(degree, sequenceLengths[i], config, gbkFile, debugLevel, prefixLength, threads);
+			}
+			if (bulk) {
+				banks[i].useBulkLoad(bulkMemory / trees);
+			} else if (countMemory > 0) {
+				banks[i].useCounter(countMemory / trees);
+			}
+			banks[i].startIngest(pipelined);
+			treeBases[i] = banks[i].bases;
+		}
+		GeneBankCreateBTree thisBank = trees == 1 ? banks[0] : new GeneBankCreateBTree(new BaseFanout(treeBases), debugLevel);
+		thisBank.inflateThreads = inflateThreads;
 
-		processFile(thisBank, gbkFile, sequenceLength);
+		processFile(thisBank, gbkFile);
+		for (GeneBankCreateBTree bank : banks) {
+			bank.finish(fillFactor);
+			if (debugLevel == 1) {
+				bank.dump(trees == 1 ? "dump" : "dump." + bank.index.sequenceLength());
+			}
+			bank.index.close();
+		}
+		if (metrics != null) {
+			metrics.close();
+		}
 		
 		thisBank.debugPrint("File done");
-		
-		if (debugLevel == 1) {
-			thisBank.newBTree.dump();
-		}
 	}
 	
 
-	public static void processFile(GeneBankCreateBTree thisBTree, String fileName, int sequenceLength) {
-		
-		BufferedReader reader = null;
-		String line;
-		StringTokenizer stringLine;
-		boolean startFound = false;
-		char[] charArray =  null;
-		StringBuilder token = new StringBuilder();
-		
+	/**
+	 * Parses the sequences of a GenBank file into the tree's k-mer encoder.
+	 * 
+	 * @param thisBTree receives the bases
+	 * @param fileName name of the GenBank file
+	 */
+	public static void processFile(GeneBankCreateBTree thisBTree, String fileName) {
+		GenBankParser parser = new GenBankParser(thisBTree.bases);
+		parser.setInflateThreads(thisBTree.inflateThreads);
 		try {
-			reader = new BufferedReader(new FileReader(fileName));
+			parser.parse(fileName);
 		} catch (FileNotFoundException err) {
 			thisBTree.debugPrint(err.toString());
 			thisBTree.debugPrint(FILE_NOT_FOUND + fileName);
-		}
-		long lineNumber = 0;
-		try {
-			line = reader.readLine();
-			while (line != null) {
-				if (thisBTree.debug == 0) {
-					//System.err.println(++lineNumber);
-				}
-				stringLine = new StringTokenizer(line);
-				while (stringLine.hasMoreTokens()) {
-					token = new StringBuilder(stringLine.nextToken());
-					if (!startFound) {
-						startFound = (token.toString().equals("ORIGIN")); 
-					}
-					if (startFound) {
-						if (!token.toString().equals("ORIGIN")) {
-							if (token.toString().equals("//")) {
-								if (thisBTree.debug == 0) {
-									System.err.println("//");
-								}
-								startFound = false;
-								thisBTree.resetQueue();
-							} 
-							charArray = line.toLowerCase().toCharArray();
-							for (int i = 0; i < charArray.length - sequenceLength; i++) {
-								
-								switch (charArray[i]) {
-									case 'a':
-										thisBTree.add("a");
-										break;
-									case 't':
-										thisBTree.add("t");
-										break;
-									case 'c':
-										thisBTree.add("c");
-										break;
-									case 'g':
-										thisBTree.add("g");
-										break;
-									default:
-										break;
-								}
-							}
-						}						
-					}
-				}
-				line = reader.readLine();				
-			}				
 		} catch (IOException err) {
 			thisBTree.debugPrint(err.toString());
 		}
-		try {
-			reader.close();
-		} catch (IOException err) {
-			thisBTree.debugPrint(err.toString());
+	}
+
+	/**
+	 * Hands every parsed base to the encoders of several trees.
+	 */
+	private static class BaseFanout implements BaseSink {
+
+		private final BaseSink[] sinks;
+
+		BaseFanout(BaseSink[] sinks) {
+			this.sinks = sinks;
+		}
+
+		public void add(int base) {
+			for (BaseSink sink : sinks) {
+				sink.add(base);
+			}
+		}
+
+		public void reset() {
+			for (BaseSink sink : sinks) {
+				sink.reset();
+			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -3,8 +3,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Scanner;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class GeneBankSearch {
@@ -14,12 +23,23 @@ public class GeneBankSearch {
 	private static final String PARSE_INT_ERROR = "The cache and debug need to be valid integers.";
 	private static final String DEBUG_ERROR = "The debug can only be set to 0 or 1.";
 	private static final String FILE_NOT_FOUND = "Unable to locate or read file: ";
+	private static final int CHUNK_SIZE = 8192; //query tokens per task with --threads
+	private static final int BATCH_SIZE = 65536; //default query tokens per sorted batch with --batch
 
 	private int debug;
-	private BTree theBTree;
+	private KmerIndex theBTree;
+	private int batchSize; //tokens looked up in one sorted walk, 0 to look up each token alone
 	
-	private GeneBankSearch(String btreeFile, int cacheSize, int debugLevel){
-		this.theBTree = new BTree(btreeFile, cacheSize);
+	private GeneBankSearch(String btreeFile, BTreeConfig config, int debugLevel){
+		if (PartitionedBTree.isManifest(btreeFile)) {
+			this.theBTree = new PartitionedBTree(btreeFile, config);
+		} else if (WideBTree.isWide(btreeFile)) {
+			this.theBTree = new WideBTree(btreeFile, config);
+		} else if (config.threadSafe) {
+			this.theBTree = new BTreeReader(btreeFile, config);
+		} else {
+			this.theBTree = new BTree(btreeFile, config);
+		}
 		this.debug = debugLevel;		
 	}
 	
@@ -36,6 +56,44 @@ public class GeneBankSearch {
 		String btreeFile, queryFile;
 		int cacheSize = 0, debugLevel = -1;
 
+		// Separate the --name[=value] options from the positional arguments
+		CommandLineOptions options = new CommandLineOptions(args);
+		args = options.positional();
+		BTreeConfig config = new BTreeConfig();
+		config.mapped = options.has("mmap");
+		config.cachePolicy = NodeCache.Policy.parse(options.get("cache-policy", "lru"));
+		config.pinnedMemory = options.getInt("pinned-memory", 64) * 1024L * 1024L;
+		config.readAhead = options.getInt("read-ahead", config.readAhead);
+		if (config.readAhead < 1) {
+			System.err.println("The read-ahead must be at least 1 leaf.");
+			System.exit(1);
+		}
+		BTreeMetrics metrics = BTreeMetrics.fromOptions(options, "GeneBankSearch");
+		config.metrics = metrics;
+		int threads = options.getInt("threads", 1);
+		if (threads < 1) {
+			System.err.println("The number of threads must be at least 1.");
+			System.exit(1);
+		}
+		config.threadSafe = threads > 1;
+		int batchSize = 0;
+		if (options.has("batch")) {
+			batchSize = options.get("batch", "").isEmpty() ? BATCH_SIZE : options.getInt("batch", BATCH_SIZE);
+			if (batchSize < 1) {
+				System.err.println("The batch size must be at least 1.");
+				System.exit(1);
+			}
+		}
+
+		// With --top the query file is not read and may be left out
+		if (options.has("top") && (args.length == 2 || (args.length > 2 && isInteger(args[2])))) {
+			String[] withQueryFile = new String[args.length + 1];
+			withQueryFile[0] = args[0];
+			withQueryFile[1] = args[1];
+			System.arraycopy(args, 2, withQueryFile, 3, args.length - 2);
+			args = withQueryFile;
+		}
+
 		// Parse command line arguments
 		// Verify correct number of arguments
 		if (args.length < 3 || args.length > 5) {
@@ -109,8 +167,362 @@ public class GeneBankSearch {
 			break;
 		}
 		
-		GeneBankSearch thisSearch = new GeneBankSearch(btreeFile, cacheSize, debugLevel);
-		processFile(thisSearch, queryFile);
+		config.cacheSize = cacheSize;
+		GeneBankSearch thisSearch = new GeneBankSearch(btreeFile, config, debugLevel);
+		thisSearch.batchSize = batchSize;
+		if (options.has("top")) { //the query file is not read
+			printTop(thisSearch, options.getInt("top", 1000), threads);
+		} else if (options.has("prefix") || options.has("range")) {
+			processRanges(thisSearch, queryFile, options.has("prefix"));
+		} else if (threads > 1 || batchSize > 0) {
+			processFile(thisSearch, queryFile, threads);
+		} else {
+			processFile(thisSearch, queryFile);
+		}
+		if (metrics != null) {
+			metrics.close();
+		}
+	}
+
+	/**
+	 * @return true if the argument is a number, e.g. a cache size rather than a query file
+	 */
+	private static boolean isInteger(String arg) {
+		try {
+			Integer.parseInt(arg);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Answers the queries in chunks on a pool of threads. The output of each
+	 * chunk is printed in file order once it is ready, so the output matches
+	 * a serial run. With a batch size set each chunk is answered by one
+	 * sorted walk of the tree. A tree of sequences longer than 31 bases is
+	 * read by one thread at a time, so only the reading and printing of its
+	 * chunks overlap.
+	 *
+	 * @param thisSearch the search, opened with a thread-safe index if threads is more than 1
+	 * @param fileName name of the query file
+	 * @param threads number of query threads
+	 */
+	public static void processFile(GeneBankSearch thisSearch, String fileName, int threads) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(fileName));
+		} catch (FileNotFoundException err) {
+			thisSearch.debugPrint(err.toString());
+			thisSearch.debugPrint(FILE_NOT_FOUND + fileName);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<String[]>> pending = new ArrayDeque<Future<String[]>>();
+		int chunkSize = thisSearch.batchSize > 0 ? thisSearch.batchSize : CHUNK_SIZE;
+		ArrayList<String> chunk = new ArrayList<String>(chunkSize);
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				StringTokenizer stringLine = new StringTokenizer(line);
+				while (stringLine.hasMoreTokens()) {
+					chunk.add(stringLine.nextToken());
+					if (chunk.size() == chunkSize) {
+						pending.add(pool.submit(thisSearch.search(chunk)));
+						chunk = new ArrayList<String>(chunkSize);
+						if (pending.size() >= 2 * threads) { //bounds the memory held by finished chunks
+							print(pending.poll());
+						}
+					}
+				}
+				line = reader.readLine();
+			}
+			pending.add(pool.submit(thisSearch.search(chunk)));
+			while (!pending.isEmpty()) {
+				print(pending.poll());
+			}
+		} catch (IOException err) {
+			thisSearch.debugPrint(err.toString());
+		} finally {
+			pool.shutdownNow();
+		}
+		try {
+			reader.close();
+		} catch (IOException err) {
+			thisSearch.debugPrint(err.toString());
+		}
+	}
+
+	/**
+	 * @param tokens query sequences
+	 * @return a task returning the output lines for stdout and stderr of the tokens
+	 */
+	private Callable<String[]> search(final ArrayList<String> tokens) {
+		return new Callable<String[]>() {
+			public String[] call() {
+				if (theBTree instanceof WideBTree) { //its nodes and cache belong to one thread at a time
+					synchronized (theBTree) {
+						return answer(tokens);
+					}
+				}
+				return answer(tokens);
+			}
+		};
+	}
+
+	/**
+	 * @param tokens query sequences
+	 * @return the output lines for stdout and stderr of the tokens
+	 */
+	private String[] answer(ArrayList<String> tokens) {
+		long[] sorted = null;
+		long[][] sortedWide = null; //high and low words of the sequences of a WideBTree
+		int[] sortedFrequencies = null;
+		if (batchSize > 0 && theBTree instanceof WideBTree) {
+			sortedWide = sortedWideKeys(tokens);
+			sortedFrequencies = new int[sortedWide[0].length];
+			((WideBTree) theBTree).frequencyBatch(sortedWide[0], sortedWide[1], 0, sortedFrequencies.length,
+					sortedFrequencies);
+		} else if (batchSize > 0) {
+			sorted = sortedKeys(tokens);
+			sortedFrequencies = new int[sorted.length];
+			theBTree.frequencyBatch(sorted, 0, sorted.length, sortedFrequencies);
+		}
+
+		StringBuilder out = new StringBuilder();
+		StringBuilder err = new StringBuilder();
+		for (String token : tokens) {
+			if (token.length() != theBTree.sequenceLength()) {
+				err.append("Sequence ").append(token).append(" is not the correct length.\n");
+			} else {
+				int frequency;
+				if (sortedFrequencies == null) {
+					frequency = theBTree.frequency(token);
+				} else if (sortedWide != null) { //back from sorted order to file order
+					long[] key = wideKey(token);
+					frequency = sortedFrequencies[search(sortedWide[0], sortedWide[1], key[0], key[1])];
+				} else {
+					frequency = sortedFrequencies[Arrays.binarySearch(sorted, key(token))];
+				}
+				if (frequency > 0) {
+					out.append(token.toLowerCase()).append(": ").append(frequency).append('\n');
+				}
+			}
+		}
+		return new String[] { out.toString(), err.toString() };
+	}
+
+	/**
+	 * @param tokens query sequences
+	 * @return the encoded sequences of the correct length, sorted without duplicates
+	 */
+	private long[] sortedKeys(ArrayList<String> tokens) {
+		long[] keys = new long[tokens.size()];
+		int n = 0;
+		for (String token : tokens) {
+			if (token.length() == theBTree.sequenceLength()) {
+				keys[n++] = key(token);
+			}
+		}
+		Arrays.sort(keys, 0, n);
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if (distinct == 0 || keys[distinct - 1] != keys[i]) {
+				keys[distinct++] = keys[i];
+			}
+		}
+		return Arrays.copyOf(keys, distinct);
+	}
+
+	/**
+	 * @param tokens query sequences of a WideBTree
+	 * @return the high and low words of the sequences of the correct length, sorted without duplicates
+	 */
+	private long[][] sortedWideKeys(ArrayList<String> tokens) {
+		final long[] highs = new long[tokens.size()];
+		final long[] lows = new long[tokens.size()];
+		int n = 0;
+		for (String token : tokens) {
+			if (token.length() == theBTree.sequenceLength()) {
+				long[] key = wideKey(token);
+				highs[n] = key[0];
+				lows[n] = key[1];
+				n++;
+			}
+		}
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return WideBTree.compare(highs[a], lows[a], highs[b], lows[b]);
+			}
+		});
+		long[][] sorted = new long[2][n];
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			int next = order[i];
+			if (distinct == 0 || sorted[0][distinct - 1] != highs[next] || sorted[1][distinct - 1] != lows[next]) {
+				sorted[0][distinct] = highs[next];
+				sorted[1][distinct] = lows[next];
+				distinct++;
+			}
+		}
+		return new long[][] { Arrays.copyOf(sorted[0], distinct), Arrays.copyOf(sorted[1], distinct) };
+	}
+
+	/**
+	 * @return index of the sequence among the sorted high and low words, which hold it
+	 */
+	private static int search(long[] highs, long[] lows, long high, long low) {
+		int from = 0;
+		int to = highs.length - 1;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (WideBTree.compare(highs[middle], lows[middle], high, low) < 0) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * Prints the n most frequent sequences, most frequent first, in the
+	 * format of the search results.
+	 *
+	 * @param thisSearch the search
+	 * @param n number of sequences
+	 * @param threads number of threads to scan with
+	 */
+	public static void printTop(GeneBankSearch thisSearch, int n, int threads) {
+		KmerIndex index = thisSearch.theBTree;
+		int sequenceLength = index.sequenceLength();
+		TopKmers top = index.topN(n, threads);
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < top.size(); i++) {
+			String sequence = sequenceLength > KmerEncoder.MAX_SEQUENCE_LENGTH
+					? WideKmerEncoder.decode(top.high(i), top.key(i), sequenceLength)
+					: KmerEncoder.decode(top.key(i), sequenceLength);
+			out.append(sequence.toLowerCase()).append(": ").append(top.frequency(i)).append('\n');
+		}
+		System.out.print(out);
+	}
+
+	/**
+	 * Answers range queries with one cursor walk each. With prefix set each
+	 * token is a prefix of at most the sequence length, otherwise the
+	 * tokens are taken in pairs as the first and last sequence of a range.
+	 * Each query prints its total frequency and number of distinct
+	 * sequences, zero included.
+	 * A canonical index is searched by the sequences as it stores them.
+	 *
+	 * @param thisSearch the search
+	 * @param fileName name of the query file
+	 * @param prefix true for prefix queries, false for ranges
+	 */
+	public static void processRanges(GeneBankSearch thisSearch, String fileName, boolean prefix) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(fileName));
+		} catch (FileNotFoundException err) {
+			thisSearch.debugPrint(err.toString());
+			thisSearch.debugPrint(FILE_NOT_FOUND + fileName);
+		}
+		KmerIndex index = thisSearch.theBTree;
+		int sequenceLength = index.sequenceLength();
+		String first = null; //start of a range whose end is still to be read
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				StringTokenizer stringLine = new StringTokenizer(line);
+				while (stringLine.hasMoreTokens()) {
+					String token = stringLine.nextToken();
+					String query;
+					KmerRange range;
+					if (prefix) {
+						if (token.length() > sequenceLength) {
+							System.err.println("Prefix " + token + " is longer than the sequence length.");
+							continue;
+						}
+						query = token;
+						range = KmerRange.prefix(token, sequenceLength);
+					} else if (token.length() != sequenceLength) {
+						System.err.println("Sequence " + token + " is not the correct length.");
+						continue;
+					} else if (first == null) {
+						first = token;
+						continue;
+					} else {
+						query = first + "-" + token;
+						range = KmerRange.between(first, token, sequenceLength);
+						first = null;
+					}
+					KmerRange.Count count = range.count(index);
+					System.out.println(query.toLowerCase() + ": " + count.total + " " + count.distinct);
+				}
+				line = reader.readLine();
+			}
+			if (first != null) {
+				System.err.println("Range from " + first + " has no end.");
+			}
+		} catch (IOException err) {
+			thisSearch.debugPrint(err.toString());
+		}
+		try {
+			reader.close();
+		} catch (IOException err) {
+			thisSearch.debugPrint(err.toString());
+		}
+	}
+
+	/**
+	 * @param token a query sequence of the correct length
+	 * @return the sequence in 2-bit long form as the index stores it
+	 */
+	private long key(String token) {
+		long key = KmerEncoder.encode(token);
+		return theBTree.isCanonical() ? KmerEncoder.canonical(key, theBTree.sequenceLength()) : key;
+	}
+
+	/**
+	 * @param token a query sequence of the correct length for a WideBTree
+	 * @return the high and low words of the sequence as the tree stores it
+	 */
+	private long[] wideKey(String token) {
+		int sequenceLength = theBTree.sequenceLength();
+		long high = WideKmerEncoder.high(token);
+		long low = WideKmerEncoder.low(token);
+		if (theBTree.isCanonical()) {
+			long reverseHigh = WideKmerEncoder.reverseComplementHigh(high, low, sequenceLength);
+			long reverseLow = WideKmerEncoder.reverseComplementLow(high, low, sequenceLength);
+			if (WideBTree.compare(reverseHigh, reverseLow, high, low) < 0) {
+				return new long[] { reverseHigh, reverseLow };
+			}
+		}
+		return new long[] { high, low };
+	}
+
+	/**
+	 * Waits for a chunk and prints its output.
+	 */
+	private static void print(Future<String[]> result) {
+		String[] output;
+		try {
+			output = result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BTreeException("Interrupted while waiting for the query threads.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new BTreeException("Query failed: " + e.getCause());
+		}
+		System.out.print(output[0]);
+		System.err.print(output[1]);
 	}
 	
 	public static void processFile(GeneBankSearch thisSearch, String fileName) {
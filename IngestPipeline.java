@@ -0,0 +1,319 @@
+/**
+ * Runs GeneBankCreateBTree ingestion as three stages on separate threads:
+ * parsing (the caller's thread), k-mer encoding and tree insertion. The
+ * stages are connected by LongRingBuffers of primitive batches, so reading
+ * and parsing the file overlaps with node I/O. Bases cross to the encoding
+ * stage packed 21 to a long as 3-bit symbols, the base code plus one or the
+ * end of a sequence, so a batch carries 21 times as many bases as a batch
+ * of one value per long; a 0 symbol ends a partly filled long. Each stage
+ * counts the values it handled and the time it spent working and waiting
+ * on its neighbours.
+ */
+public class IngestPipeline {
+
+	private static final int SYMBOL_BITS = 3;
+	private static final long SYMBOL_MASK = (1L << SYMBOL_BITS) - 1;
+	private static final int WORD_BITS = 64 / SYMBOL_BITS * SYMBOL_BITS; //21 symbols
+	private static final long RESET = 5; //end of sequence symbol; bases are 1 to 4
+	private static final int BATCH_SIZE = 4096;
+	private static final int RING_CAPACITY = 64;
+
+	private final LongRingBuffer baseRing;
+	private final LongRingBuffer kmerRing;
+	private final Stage parseStage = new Stage("parse");
+	private final Stage encodeStage = new Stage("encode");
+	private final Stage insertStage = new Stage("insert");
+	private final Thread encodeThread;
+	private final Thread insertThread;
+	private final Input input;
+	private volatile Throwable failure;
+
+	/**
+	 * Creates the pipeline and starts the encoding and insertion threads.
+	 *
+	 * @param sequenceLength length of the k-mers
+	 * @param target receives the k-mers on the insertion thread, e.g. a BTree
+	 */
+	public IngestPipeline(int sequenceLength, KmerSink target) {
+		this(sequenceLength, false, target);
+	}
+
+	/**
+	 * Creates the pipeline and starts the encoding and insertion threads.
+	 *
+	 * @param sequenceLength length of the k-mers
+	 * @param canonical emit the lesser of each k-mer and its reverse complement
+	 * @param target receives the k-mers on the insertion thread, e.g. a BTree
+	 */
+	public IngestPipeline(final int sequenceLength, final boolean canonical, final KmerSink target) {
+		baseRing = new LongRingBuffer(RING_CAPACITY, BATCH_SIZE);
+		kmerRing = new LongRingBuffer(RING_CAPACITY, BATCH_SIZE);
+		input = new Input();
+
+		encodeThread = new Thread(new Runnable() {
+			public void run() {
+				encode(sequenceLength, canonical);
+			}
+		}, "ingest-encode");
+		insertThread = new Thread(new Runnable() {
+			public void run() {
+				insert(target);
+			}
+		}, "ingest-insert");
+		encodeThread.start();
+		insertThread.start();
+	}
+
+	/**
+	 * @return the sink the parser feeds bases into; only the calling thread may use it
+	 */
+	public BaseSink input() {
+		return input;
+	}
+
+	/**
+	 * Waits until every base handed to input() has been encoded and inserted.
+	 * The target may be used by the calling thread afterwards.
+	 */
+	public void finish() {
+		input.flush();
+		baseRing.close();
+		parseStage.start();
+		parseStage.stop();
+		try {
+			encodeThread.join();
+			insertThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BTreeException("Interrupted while waiting for the ingest threads.");
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure != null) {
+			throw new BTreeException("Ingest failed: " + failure);
+		}
+	}
+
+	/**
+	 * @return one line of throughput counters per stage
+	 */
+	public String stats() {
+		return parseStage + "\n" + encodeStage + "\n" + insertStage;
+	}
+
+	/**
+	 * Encoding stage: turns the base stream into k-mers.
+	 */
+	private void encode(int sequenceLength, boolean canonical) {
+		KmerBatcher kmers = new KmerBatcher();
+		KmerEncoder encoder = new KmerEncoder(sequenceLength, canonical, kmers);
+		encodeStage.start();
+		try {
+			long[] batch = take(baseRing, encodeStage);
+			while (batch != null) {
+				int length = baseRing.length();
+				int symbols = 0;
+				for (int i = 0; i < length; i++) {
+					for (long word = batch[i]; word != 0; word >>>= SYMBOL_BITS) {
+						int symbol = (int) (word & SYMBOL_MASK);
+						if (symbol == RESET) {
+							encoder.reset();
+						} else {
+							encoder.add(symbol - 1);
+						}
+						symbols++;
+					}
+				}
+				encodeStage.handled(symbols);
+				baseRing.release();
+				batch = take(baseRing, encodeStage);
+			}
+			kmers.flush();
+		} catch (Throwable e) {
+			fail(e);
+			baseRing.fail(failure);
+		} finally {
+			kmerRing.close();
+			encodeStage.stop();
+		}
+	}
+
+	/**
+	 * Insertion stage: hands the k-mers to the target.
+	 */
+	private void insert(KmerSink target) {
+		insertStage.start();
+		try {
+			long[] batch = take(kmerRing, insertStage);
+			while (batch != null) {
+				int length = kmerRing.length();
+				for (int i = 0; i < length; i++) {
+					target.add(batch[i]);
+				}
+				insertStage.handled(length);
+				kmerRing.release();
+				batch = take(kmerRing, insertStage);
+			}
+		} catch (Throwable e) {
+			fail(e);
+			kmerRing.fail(failure);
+			baseRing.fail(failure);
+		} finally {
+			insertStage.stop();
+		}
+	}
+
+	/**
+	 * Records the first failure of a stage thread.
+	 */
+	private synchronized void fail(Throwable e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	private static long[] take(LongRingBuffer ring, Stage stage) {
+		long start = System.nanoTime();
+		long[] batch = ring.take();
+		stage.waited(System.nanoTime() - start);
+		return batch;
+	}
+
+	private static long[] claim(LongRingBuffer ring, Stage stage) {
+		long start = System.nanoTime();
+		long[] batch = ring.claim();
+		stage.waited(System.nanoTime() - start);
+		return batch;
+	}
+
+	/**
+	 * Parsing side: packs bases into words and the words into batches for
+	 * the encoding stage.
+	 */
+	private class Input implements BaseSink {
+
+		private long[] batch;
+		private int length;
+		private long word; //symbols from the lowest bits up
+		private int shift; //position of the next symbol in the word
+		private int symbols; //symbols in the batch and the word
+
+		public void add(int base) {
+			put(base + 1);
+		}
+
+		public void reset() {
+			put(RESET);
+		}
+
+		private void put(long symbol) {
+			word |= symbol << shift;
+			shift += SYMBOL_BITS;
+			symbols++;
+			if (shift == WORD_BITS) {
+				store();
+				if (length == batch.length) {
+					publish();
+				}
+			}
+		}
+
+		/**
+		 * Moves the word into the batch, claiming a batch first if there is none.
+		 */
+		private void store() {
+			if (batch == null) {
+				parseStage.start();
+				batch = claim(baseRing, parseStage);
+			}
+			batch[length++] = word;
+			word = 0;
+			shift = 0;
+		}
+
+		private void publish() {
+			baseRing.publish(length);
+			parseStage.handled(symbols);
+			symbols = 0;
+			length = 0;
+			batch = null;
+		}
+
+		void flush() {
+			if (shift > 0) {
+				store();
+			}
+			if (length > 0) {
+				publish();
+			}
+		}
+	}
+
+	/**
+	 * Encoding side: collects k-mers into batches for the insertion stage.
+	 */
+	private class KmerBatcher implements KmerSink {
+
+		private long[] batch;
+		private int length;
+
+		public void add(long kmer) {
+			if (batch == null) {
+				batch = claim(kmerRing, encodeStage);
+			}
+			batch[length++] = kmer;
+			if (length == batch.length) {
+				flush();
+			}
+		}
+
+		void flush() {
+			if (length > 0) {
+				kmerRing.publish(length);
+				length = 0;
+				batch = null;
+			}
+		}
+	}
+
+	/**
+	 * Throughput counters of one stage.
+	 */
+	private static class Stage {
+
+		private final String name;
+		private volatile long items;
+		private volatile long startNanos;
+		private volatile long stopNanos;
+		private volatile long waitNanos;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		void start() {
+			if (startNanos == 0) {
+				startNanos = System.nanoTime();
+			}
+		}
+
+		void stop() {
+			stopNanos = System.nanoTime();
+		}
+
+		void handled(int count) {
+			items += count;
+		}
+
+		void waited(long nanos) {
+			waitNanos += nanos;
+		}
+
+		public String toString() {
+			long elapsed = Math.max(1, stopNanos - startNanos);
+			double seconds = elapsed / 1e9;
+			return String.format("%-6s %,d items in %.2f s (%,.0f items/s), %.0f%% waiting", name, items, seconds,
+					items / seconds, 100.0 * Math.min(waitNanos, elapsed) / elapsed);
+		}
+	}
+}
@@ -0,0 +1,12 @@
+/**
+ * Receives k-mers with pre-aggregated counts, sorted in ascending order.
+ */
+public interface KmerBatchSink {
+
+	/**
+	 * @param keys k-mers in 2-bit long form
+	 * @param counts number of occurrences of each k-mer
+	 * @param length number of entries to add
+	 */
+	void insertBatch(long[] keys, int[] counts, int length);
+}
@@ -0,0 +1,90 @@
+import java.util.Arrays;
+
+/**
+ * Pre-aggregates k-mer counts in front of a BTree or PartitionedBTree. Occurrences are counted in
+ * an open addressing long to int hash map; when the map reaches its memory
+ * budget the distinct k-mers are sorted and flushed into the tree with
+ * BTree.insertBatch, so a k-mer seen a thousand times costs one descent
+ * instead of a thousand.
+ */
+public class KmerCounter implements KmerSink {
+
+	private static final long EMPTY = -1L; //k-mers are never negative
+	private static final int BYTES_PER_SLOT = 18; //12 for the table at half load, 6 for the batch
+
+	private final KmerBatchSink tree;
+	private final long[] keys;
+	private final int[] counts;
+	private final int mask;
+	private final int shift; //64 - log2 of the table size
+	private final int threshold;
+	private int size;
+
+	private final long[] batchKeys;
+	private final int[] batchCounts;
+
+	/**
+	 * @param memoryBytes memory for the map and the flush batch
+	 * @param tree the tree the counts are flushed into
+	 */
+	public KmerCounter(long memoryBytes, KmerBatchSink tree) {
+		long slots = Math.max(1024, memoryBytes / BYTES_PER_SLOT);
+		int tableSize = Integer.highestOneBit((int) Math.min(slots, 1 << 30));
+
+		this.tree = tree;
+		this.keys = new long[tableSize];
+		this.counts = new int[tableSize];
+		this.mask = tableSize - 1;
+		this.shift = 64 - Integer.numberOfTrailingZeros(tableSize);
+		this.threshold = tableSize / 2;
+		this.batchKeys = new long[threshold];
+		this.batchCounts = new int[threshold];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	public void add(long kmer) {
+		int i = slot(kmer);
+		if (keys[i] == kmer) {
+			counts[i]++;
+			return;
+		}
+		keys[i] = kmer;
+		counts[i] = 1;
+		if (++size == threshold) {
+			flush();
+		}
+	}
+
+	/**
+	 * Inserts the counted k-mers into the tree in ascending order and empties
+	 * the map.
+	 */
+	public void flush() {
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				batchKeys[n++] = keys[i];
+			}
+		}
+		Arrays.sort(batchKeys, 0, n);
+		for (int i = 0; i < n; i++) {
+			batchCounts[i] = counts[slot(batchKeys[i])];
+		}
+
+		tree.insertBatch(batchKeys, batchCounts, n);
+
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	/**
+	 * @return the slot holding the k-mer, or the empty slot it belongs in
+	 */
+	private int slot(long kmer) {
+		int i = (int) ((kmer * 0x9E3779B97F4A7C15L) >>> shift);
+		while (keys[i] != EMPTY && keys[i] != kmer) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+}
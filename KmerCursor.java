@@ -0,0 +1,31 @@
+/**
+ * Walks the k-mers of an index in ascending order. A new cursor stands
+ * before its first k-mer; each call to next moves it to the following one.
+ * The index must not change while a cursor over it is in use.
+ */
+public interface KmerCursor {
+
+	/**
+	 * Moves to the next k-mer.
+	 *
+	 * @return true if there is one, false once the cursor is past its last k-mer
+	 */
+	boolean next();
+
+	/**
+	 * @return the current k-mer in 2-bit long form, the last 32 bases of a
+	 *         k-mer longer than 31 bases
+	 */
+	long key();
+
+	/**
+	 * @return the bases before the last 32 of the current k-mer in 2-bit
+	 *         long form, 0 for k-mers of at most 31 bases
+	 */
+	long high();
+
+	/**
+	 * @return the frequency of the current k-mer
+	 */
+	int frequency();
+}
@@ -0,0 +1,172 @@
+/**
+ * Rolling 2-bit encoder for k-mers. The current window is kept as a masked
+ * long shift register, so adding a base is a shift, an or and a mask, and a
+ * complete k-mer is handed to the sink without building any strings.
+ * <p>
+ * In canonical mode the reverse complement of the window is kept in a
+ * second register, shifted the other way, and the lesser of the two is
+ * emitted, so a k-mer and its reverse complement on the other strand count
+ * as one. The complement of a base is 3 minus its code.
+ */
+public class KmerEncoder implements BaseSink {
+
+	/** the most bases a k-mer in one long may have; longer ones are encoded by WideKmerEncoder */
+	public static final int MAX_SEQUENCE_LENGTH = 31;
+
+	private final int sequenceLength;
+	private final long mask;
+	private final KmerSink sink;
+	private final boolean canonical;
+	private final int topShift; //moves a base to the first position of a k-mer
+	private long window;
+	private long reverse; //reverse complement of the window
+	private int filled;
+
+	/**
+	 * @param sequenceLength the length of the k-mers to emit
+	 * @param sink receives every complete k-mer, e.g. a BTree
+	 */
+	public KmerEncoder(int sequenceLength, KmerSink sink) {
+		this(sequenceLength, false, sink);
+	}
+
+	/**
+	 * @param sequenceLength the length of the k-mers to emit
+	 * @param canonical emit the lesser of each k-mer and its reverse complement
+	 * @param sink receives every complete k-mer, e.g. a BTree
+	 */
+	public KmerEncoder(int sequenceLength, boolean canonical, KmerSink sink) {
+		if (sequenceLength < 1 || sequenceLength > MAX_SEQUENCE_LENGTH) {
+			throw new BTreeException("Sequence length must be between 1 and " + MAX_SEQUENCE_LENGTH + " (inclusive). "
+					+ sequenceLength + " was given.\n");
+		}
+		this.sequenceLength = sequenceLength;
+		this.mask = (1L << (2 * sequenceLength)) - 1;
+		this.sink = sink;
+		this.canonical = canonical;
+		this.topShift = 2 * (sequenceLength - 1);
+		reset();
+	}
+
+	/**
+	 * Returns the 2-bit code of a base, or -1 if the character is not a base.
+	 * 
+	 * @param base character to encode
+	 * @return A=0, C=1, G=2, T=3, otherwise -1
+	 */
+	public static int encode(char base) {
+		switch (base) {
+			case 'a':
+			case 'A':
+				return 0;
+			case 'c':
+			case 'C':
+				return 1;
+			case 'g':
+			case 'G':
+				return 2;
+			case 't':
+			case 'T':
+				return 3;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Encodes a whole sequence into 2-bit long form.
+	 * 
+	 * @param sequence string of bases, at most 31 long
+	 * @return the sequence in long form
+	 */
+	public static long encode(String sequence) {
+		long sequenceLong = 0;
+		for (int i = 0; i < sequence.length(); i++) {
+			char sequenceChar = sequence.charAt(i);
+			int code = encode(sequenceChar);
+
+			if (code < 0) {
+				throw new BTreeException("Unexpected character: " + sequenceChar);
+			}
+			sequenceLong = (sequenceLong << 2) | code;
+		}
+		return sequenceLong;
+	}
+
+	/**
+	 * @param sequence a sequence given to an index
+	 * @param sequenceLength the length of the sequences in the index
+	 * @throws BTreeException naming the expected and the given length if they differ
+	 */
+	public static void checkLength(String sequence, int sequenceLength) {
+		if (sequence.length() != sequenceLength) {
+			throw new BTreeException("A sequence of " + sequenceLength + " bases was expected. " + sequence.length()
+					+ " were given.");
+		}
+	}
+
+	/**
+	 * @param sequence in 2-bit long form
+	 * @param sequenceLength number of bases in the sequence
+	 * @return the reverse complement of the sequence
+	 */
+	public static long reverseComplement(long sequence, int sequenceLength) {
+		long reversed = Long.reverse(~sequence); //reverses the bits, so each base has its two bits swapped
+		reversed = ((reversed >>> 1) & 0x5555555555555555L) | ((reversed & 0x5555555555555555L) << 1);
+		return reversed >>> (64 - 2 * sequenceLength);
+	}
+
+	/**
+	 * @param sequence in 2-bit long form
+	 * @param sequenceLength number of bases in the sequence
+	 * @return the lesser of the sequence and its reverse complement
+	 */
+	public static long canonical(long sequence, int sequenceLength) {
+		return Math.min(sequence, reverseComplement(sequence, sequenceLength));
+	}
+
+	/**
+	 * @param sequence in 2-bit long form
+	 * @param sequenceLength number of bases in the sequence
+	 * @return the sequence as a string of upper case bases
+	 */
+	public static String decode(long sequence, int sequenceLength) {
+		char[] bases = new char[sequenceLength];
+		for (int i = sequenceLength - 1; i >= 0; i--) {
+			bases[i] = "ACGT".charAt((int) (sequence & 0x3L));
+			sequence >>>= 2;
+		}
+		return new String(bases);
+	}
+
+	/**
+	 * Shifts a base into the window and emits the k-mer once the window is full.
+	 * 
+	 * @param base 2-bit code of the base
+	 */
+	public void add(int base) {
+		window = ((window << 2) | base) & mask;
+		if (filled < sequenceLength) {
+			filled++;
+		}
+		if (!canonical) {
+			if (filled == sequenceLength) {
+				sink.add(window);
+			}
+			return;
+		}
+		reverse = (reverse >>> 2) | ((long) (3 - base) << topShift);
+		if (filled == sequenceLength) {
+			sink.add(Math.min(window, reverse));
+		}
+	}
+
+	/**
+	 * Empties the window, e.g. at the end of a sequence.
+	 */
+	public void reset() {
+		window = 0;
+		reverse = 0;
+		filled = 0;
+	}
+}
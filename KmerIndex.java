@@ -0,0 +1,78 @@
+import java.io.FileWriter;
+
+/**
+ * A k-mer count index on disk: a single BTree or a PartitionedBTree.
+ */
+public interface KmerIndex {
+
+	/**
+	 * @return the length of the sequences in the index
+	 */
+	int sequenceLength();
+
+	/**
+	 * @return the degree of the tree, or of each partition
+	 */
+	int degree();
+
+	/**
+	 * @return true if each sequence is stored as the lesser of itself and its
+	 *         reverse complement; lookups by long form then expect that form
+	 */
+	boolean isCanonical();
+
+	/**
+	 * @param sequence as a string, which a canonical index maps to its stored form
+	 * @return the frequency of the sequence, 0 if it is not in the index
+	 */
+	int frequency(String sequence);
+
+	/**
+	 * @param sequence in 2-bit long form
+	 * @return the frequency of the sequence, 0 if it is not in the index
+	 */
+	int frequency(long sequence);
+
+	/**
+	 * Looks up a sorted range of sequences in one walk of the index, which
+	 * reads every node at most once instead of once per sequence.
+	 *
+	 * @param sortedKeys sequences in 2-bit long form, ascending in the range
+	 * @param from index of the first sequence
+	 * @param to index after the last sequence
+	 * @param frequencies receives the frequency of sortedKeys[i] at index i, 0 if it is not in the index
+	 */
+	void frequencyBatch(long[] sortedKeys, int from, int to, int[] frequencies);
+
+	/**
+	 * Walks the sequences of a key range in ascending order, e.g. every
+	 * sequence with a given prefix, see KmerRange.
+	 *
+	 * @param from smallest sequence in 2-bit long form
+	 * @param to largest sequence in 2-bit long form, included
+	 * @return a cursor over the sequences in the range that are in the index
+	 */
+	KmerCursor cursor(long from, long to);
+
+	/**
+	 * Finds the most frequent sequences in one scan of the index, keeping
+	 * only n of them in memory.
+	 *
+	 * @param n most sequences to return
+	 * @param threads most threads to scan with; an index that only one thread may read scans on the caller's thread
+	 * @return the n most frequent sequences, most frequent first
+	 */
+	TopKmers topN(int n, int threads);
+
+	/**
+	 * Writes every sequence and its frequency in ascending order.
+	 *
+	 * @param dumpFile where the lines are written
+	 */
+	void dump(FileWriter dumpFile);
+
+	/**
+	 * Writes any pending changes and closes the index.
+	 */
+	void close();
+}
@@ -0,0 +1,122 @@
+/**
+ * A range of k-mers in key order. Keys are 2-bit encodings with the first
+ * base in the highest bits, so the k-mers that start with a prefix form one
+ * contiguous range, and a prefix query is a range query. The ends of a
+ * range of k-mers longer than 31 bases take a high and a low word, as in a
+ * WideBTree; for shorter k-mers the high words are 0.
+ */
+public class KmerRange {
+
+	public final long fromHigh; //bases of the smallest k-mer before its last 32
+	public final long from; //smallest k-mer, or its last 32 bases, in 2-bit long form
+	public final long toHigh;
+	public final long to; //largest k-mer, included
+
+	/**
+	 * @param from smallest k-mer in 2-bit long form
+	 * @param to largest k-mer in 2-bit long form, included
+	 */
+	public KmerRange(long from, long to) {
+		this(0, from, 0, to);
+	}
+
+	/**
+	 * @param fromHigh the bases before the last 32 of the smallest k-mer
+	 * @param fromLow the last 32 bases of the smallest k-mer
+	 * @param toHigh the bases before the last 32 of the largest k-mer
+	 * @param toLow the last 32 bases of the largest k-mer, included
+	 */
+	public KmerRange(long fromHigh, long fromLow, long toHigh, long toLow) {
+		this.fromHigh = fromHigh;
+		this.from = fromLow;
+		this.toHigh = toHigh;
+		this.to = toLow;
+	}
+
+	/**
+	 * @param prefix the first bases, at most sequenceLength of them
+	 * @param sequenceLength length of the k-mers
+	 * @return the range of the k-mers that start with the prefix
+	 */
+	public static KmerRange prefix(String prefix, int sequenceLength) {
+		if (prefix.length() > sequenceLength) {
+			throw new BTreeException("The prefix " + prefix + " is longer than the sequence length " + sequenceLength + ".");
+		}
+		if (sequenceLength > KmerEncoder.MAX_SEQUENCE_LENGTH) { //the prefix followed by all A or all T
+			return between(pad(prefix, 'A', sequenceLength), pad(prefix, 'T', sequenceLength), sequenceLength);
+		}
+		int shift = 2 * (sequenceLength - prefix.length());
+		long from = KmerEncoder.encode(prefix) << shift;
+		return new KmerRange(from, from | ((1L << shift) - 1));
+	}
+
+	/**
+	 * @param from smallest k-mer
+	 * @param to largest k-mer, included
+	 * @param sequenceLength length of the k-mers
+	 * @return the range from one k-mer to the other
+	 */
+	public static KmerRange between(String from, String to, int sequenceLength) {
+		if (from.length() != sequenceLength || to.length() != sequenceLength) {
+			throw new BTreeException("Both ends of a range must be " + sequenceLength + " bases long.");
+		}
+		if (sequenceLength > KmerEncoder.MAX_SEQUENCE_LENGTH) {
+			return new KmerRange(WideKmerEncoder.high(from), WideKmerEncoder.low(from), WideKmerEncoder.high(to),
+					WideKmerEncoder.low(to));
+		}
+		return new KmerRange(KmerEncoder.encode(from), KmerEncoder.encode(to));
+	}
+
+	/**
+	 * @return the prefix followed by the base up to the sequence length
+	 */
+	private static String pad(String prefix, char base, int sequenceLength) {
+		StringBuilder padded = new StringBuilder(sequenceLength).append(prefix);
+		while (padded.length() < sequenceLength) {
+			padded.append(base);
+		}
+		return padded.toString();
+	}
+
+	/**
+	 * @param index the index to look in
+	 * @return a cursor over the k-mers of the index in the range
+	 */
+	public KmerCursor cursor(KmerIndex index) {
+		if (index instanceof WideBTree) {
+			return ((WideBTree) index).cursor(fromHigh, from, toHigh, to);
+		}
+		return index.cursor(from, to);
+	}
+
+	/**
+	 * Walks the k-mers of the range once, reading only the leaves that hold them.
+	 *
+	 * @param index the index to count in
+	 * @return the number of distinct k-mers in the range and their total frequency
+	 */
+	public Count count(KmerIndex index) {
+		long distinct = 0;
+		long total = 0;
+		KmerCursor cursor = cursor(index);
+		while (cursor.next()) {
+			distinct++;
+			total += cursor.frequency() & 0xFFFFFFFFL;
+		}
+		return new Count(distinct, total);
+	}
+
+	/**
+	 * The k-mers found in a range.
+	 */
+	public static class Count {
+
+		public final long distinct; //number of k-mers
+		public final long total; //sum of their frequencies
+
+		Count(long distinct, long total) {
+			this.distinct = distinct;
+			this.total = total;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts k-mers into sorted runs for a bulk load. K-mers are buffered in a
+ * long[] that grows until the memory budget is used up; the buffer is then
+ * sorted, collapsed into (k-mer, count) pairs and spilled to a temporary run
+ * file. finish() returns the merged, distinct k-mers in ascending order,
+ * merging at most MAX_FAN_IN run files at a time.
+ */
+public class KmerRunSorter implements KmerSink {
+
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+	private static final int INITIAL_ENTRIES = 1 << 16;
+	private static final int MAX_FAN_IN = 64; //run files open at once while merging
+
+	private long[] buffer;
+	private int[] counts; //allocated when the buffer is first collapsed
+	private int size;
+	private int capacity; //most entries the memory budget allows
+	private File directory;
+	private ArrayList<File> runs;
+
+	/**
+	 * @param memoryBytes memory to use for buffering k-mers, at most half the heap
+	 * @param directory where run files are spilled, null for the default temporary directory
+	 */
+	public KmerRunSorter(long memoryBytes, File directory) {
+		memoryBytes = Math.min(memoryBytes, Runtime.getRuntime().maxMemory() / 2); //room to copy the buffer as it grows
+		long entries = Math.max(1024, memoryBytes / 12); //8 bytes per k-mer, 4 per count
+		if (entries > Integer.MAX_VALUE - 8) {
+			entries = Integer.MAX_VALUE - 8;
+		}
+		this.capacity = (int) entries;
+		this.buffer = new long[Math.min(INITIAL_ENTRIES, capacity)];
+		this.directory = directory;
+		this.runs = new ArrayList<File>();
+	}
+
+	public void add(long kmer) {
+		if (size == buffer.length && size < capacity) {
+			buffer = Arrays.copyOf(buffer, (int) Math.min(capacity, 2L * size));
+		} else if (size == buffer.length) {
+			try {
+				spill();
+			} catch (IOException e) {
+				throw new BTreeException("Could not spill k-mers to disk: " + e.getMessage());
+			}
+		}
+		buffer[size++] = kmer;
+	}
+
+	/**
+	 * Sorts and merges everything added so far. The sorter must not be used
+	 * afterwards.
+	 *
+	 * @return the distinct k-mers with their counts in ascending order
+	 * @throws IOException if a run file cannot be written or read
+	 */
+	public Run finish() throws IOException {
+		if (runs.isEmpty()) {
+			int distinct = collapse();
+			Run run = new ArrayRun(buffer, counts, distinct);
+			buffer = null;
+			counts = null;
+			return run;
+		}
+
+		if (size > 0) {
+			spill();
+		}
+		buffer = null;
+		counts = null;
+		return merge();
+	}
+
+	/**
+	 * Sorts the buffer and collapses equal k-mers into the front of buffer
+	 * and counts.
+	 *
+	 * @return the number of distinct k-mers
+	 */
+	private int collapse() {
+		if (counts == null || counts.length < size) {
+			counts = new int[buffer.length];
+		}
+		Arrays.sort(buffer, 0, size);
+		int distinct = 0;
+		for (int i = 0; i < size; i++) {
+			if (distinct > 0 && buffer[distinct - 1] == buffer[i]) {
+				counts[distinct - 1]++;
+			} else {
+				buffer[distinct] = buffer[i];
+				counts[distinct] = 1;
+				distinct++;
+			}
+		}
+		size = 0;
+		return distinct;
+	}
+
+	/**
+	 * Writes the collapsed buffer to a new run file.
+	 */
+	private void spill() throws IOException {
+		int distinct = collapse();
+		File runFile = File.createTempFile("kmers", ".run", directory);
+		runFile.deleteOnExit();
+		runs.add(runFile);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), IO_BUFFER_SIZE));
+		for (int i = 0; i < distinct; i++) {
+			out.writeLong(buffer[i]);
+			out.writeInt(counts[i]);
+		}
+		out.close();
+	}
+
+	/**
+	 * Merges the run files into one run of distinct k-mers, adding the
+	 * counts of k-mers that occur in several runs. With more than MAX_FAN_IN
+	 * runs, groups of them are first merged into longer runs, so only a
+	 * bounded number of files is open at once.
+	 */
+	private Run merge() throws IOException {
+		while (runs.size() > MAX_FAN_IN) {
+			ArrayList<File> longer = new ArrayList<File>();
+			for (int from = 0; from < runs.size(); from += MAX_FAN_IN) {
+				File runFile = File.createTempFile("kmers", ".run", directory);
+				runFile.deleteOnExit();
+				merge(runs.subList(from, Math.min(runs.size(), from + MAX_FAN_IN)), runFile);
+				longer.add(runFile);
+			}
+			runs = longer;
+		}
+
+		File merged = File.createTempFile("kmers", ".merged", directory);
+		merged.deleteOnExit();
+		long distinct = merge(runs, merged);
+		runs.clear();
+		return new FileRun(merged, distinct);
+	}
+
+	/**
+	 * Merges run files into one file of the same layout and deletes them.
+	 *
+	 * @param runFiles the runs to merge
+	 * @param merged the file to write
+	 * @return the number of distinct k-mers written
+	 */
+	private static long merge(List<File> runFiles, File merged) throws IOException {
+		FileRun[] inputs = new FileRun[runFiles.size()];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = new FileRun(runFiles.get(i), -1);
+		}
+
+		//binary min-heap of the inputs that still have k-mers, ordered by current key
+		int[] heap = new int[inputs.length];
+		int heapSize = 0;
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i].next()) {
+				heap[heapSize++] = i;
+				siftUp(heap, heapSize - 1, inputs);
+			} else {
+				inputs[i].close();
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), IO_BUFFER_SIZE));
+		long distinct = 0;
+
+		while (heapSize > 0) {
+			FileRun smallest = inputs[heap[0]];
+			long key = smallest.key();
+			int count = 0;
+
+			while (heapSize > 0 && inputs[heap[0]].key() == key) {
+				FileRun input = inputs[heap[0]];
+				count += input.count();
+				if (input.next()) {
+					siftDown(heap, heapSize, inputs);
+				} else {
+					input.close(); //deletes the run file
+					heap[0] = heap[--heapSize];
+					siftDown(heap, heapSize, inputs);
+				}
+			}
+			out.writeLong(key);
+			out.writeInt(count);
+			distinct++;
+		}
+		out.close();
+		return distinct;
+	}
+
+	private static void siftUp(int[] heap, int i, FileRun[] inputs) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (inputs[heap[parent]].key() <= inputs[heap[i]].key()) {
+				return;
+			}
+			int tmp = heap[parent];
+			heap[parent] = heap[i];
+			heap[i] = tmp;
+			i = parent;
+		}
+	}
+
+	private static void siftDown(int[] heap, int heapSize, FileRun[] inputs) {
+		int i = 0;
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < heapSize && inputs[heap[left]].key() < inputs[heap[smallest]].key()) {
+				smallest = left;
+			}
+			if (right < heapSize && inputs[heap[right]].key() < inputs[heap[smallest]].key()) {
+				smallest = right;
+			}
+			if (smallest == i) {
+				return;
+			}
+			int tmp = heap[smallest];
+			heap[smallest] = heap[i];
+			heap[i] = tmp;
+			i = smallest;
+		}
+	}
+
+	/**
+	 * Distinct k-mers with their counts, read in ascending order.
+	 */
+	public static abstract class Run {
+
+		/**
+		 * @return number of distinct k-mers in the run
+		 */
+		public abstract long size();
+
+		/**
+		 * Advances to the next k-mer.
+		 *
+		 * @return false if the run is exhausted
+		 * @throws IOException if the run cannot be read
+		 */
+		public abstract boolean next() throws IOException;
+
+		/**
+		 * @return the current k-mer
+		 */
+		public abstract long key();
+
+		/**
+		 * @return the count of the current k-mer
+		 */
+		public abstract int count();
+
+		/**
+		 * Releases the run and any file behind it.
+		 */
+		public abstract void close();
+	}
+
+	private static class ArrayRun extends Run {
+
+		private long[] keys;
+		private int[] counts;
+		private int size;
+		private int current = -1;
+
+		ArrayRun(long[] keys, int[] counts, int size) {
+			this.keys = keys;
+			this.counts = counts;
+			this.size = size;
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public boolean next() {
+			return ++current < size;
+		}
+
+		public long key() {
+			return keys[current];
+		}
+
+		public int count() {
+			return counts[current];
+		}
+
+		public void close() {
+			keys = null;
+			counts = null;
+		}
+	}
+
+	private static class FileRun extends Run {
+
+		private File file;
+		private DataInputStream in;
+		private long size;
+		private long key;
+		private int count;
+
+		FileRun(File file, long size) throws IOException {
+			this.file = file;
+			this.size = size;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public boolean next() throws IOException {
+			try {
+				key = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			count = in.readInt();
+			return true;
+		}
+
+		public long key() {
+			return key;
+		}
+
+		public int count() {
+			return count;
+		}
+
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			file.delete();
+		}
+	}
+}
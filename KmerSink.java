@@ -0,0 +1,10 @@
+/**
+ * Receives encoded k-mers from a KmerEncoder.
+ */
+public interface KmerSink {
+
+	/**
+	 * @param kmer the k-mer in 2-bit long form
+	 */
+	void add(long kmer);
+}
@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer queue of long[] batches. The
+ * batches are preallocated and handed back and forth in place, so passing
+ * values between two threads allocates nothing and needs no locks: the
+ * producer only writes the tail cursor and the consumer only the head.
+ */
+public class LongRingBuffer {
+
+	private static final int SPINS = 100;
+
+	private final long[][] batches;
+	private final int[] lengths;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong(); //next batch to take
+	private final AtomicLong tail = new AtomicLong(); //next batch to publish
+	private volatile boolean closed;
+	private volatile Throwable failure; //why the consumer stopped, null while it runs
+
+	/**
+	 * @param capacity number of batches, rounded up to a power of two
+	 * @param batchSize number of longs per batch
+	 */
+	public LongRingBuffer(int capacity, int batchSize) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		batches = new long[size][batchSize];
+		lengths = new int[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Producer: waits for a free batch to fill.
+	 *
+	 * @return the batch, valid until publish
+	 */
+	public long[] claim() {
+		checkFailure();
+		long t = tail.get();
+		int spins = 0;
+		while (t - head.get() > mask) {
+			checkFailure();
+			spins = idle(spins);
+		}
+		return batches[(int) (t & mask)];
+	}
+
+	/**
+	 * Producer: hands the claimed batch to the consumer.
+	 *
+	 * @param length number of values in the batch
+	 */
+	public void publish(int length) {
+		checkFailure();
+		long t = tail.get();
+		lengths[(int) (t & mask)] = length;
+		tail.lazySet(t + 1);
+	}
+
+	/**
+	 * Producer: no more batches will be published.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Consumer: stops the producer after the consumer failed. The producer's
+	 * next claim or publish throws a BTreeException caused by the failure,
+	 * so it stops within a batch rather than once the buffer is full.
+	 *
+	 * @param cause what the consumer failed with
+	 */
+	public void fail(Throwable cause) {
+		failure = cause;
+	}
+
+	/**
+	 * Producer: throws if the consumer failed.
+	 */
+	private void checkFailure() {
+		Throwable cause = failure;
+		if (cause != null) {
+			throw new BTreeException("The consumer of the ring buffer failed: " + cause, cause);
+		}
+	}
+
+	/**
+	 * Consumer: waits for the next published batch.
+	 *
+	 * @return the batch, valid until release, or null if the buffer is closed and drained
+	 */
+	public long[] take() {
+		long h = head.get();
+		int spins = 0;
+		while (h == tail.get()) {
+			if (closed && h == tail.get()) {
+				return null;
+			}
+			spins = idle(spins);
+		}
+		return batches[(int) (h & mask)];
+	}
+
+	/**
+	 * Consumer: number of values in the batch returned by take.
+	 *
+	 * @return length of the current batch
+	 */
+	public int length() {
+		return lengths[(int) (head.get() & mask)];
+	}
+
+	/**
+	 * Consumer: returns the current batch to the producer.
+	 */
+	public void release() {
+		head.lazySet(head.get() + 1);
+	}
+
+	/**
+	 * Spins briefly, then yields, then parks while waiting.
+	 */
+	private static int idle(int spins) {
+		if (spins < SPINS) {
+			//busy wait, the other side is usually just behind
+		} else if (spins < 2 * SPINS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(20000);
+		}
+		return spins + 1;
+	}
+}
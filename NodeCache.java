@@ -0,0 +1,505 @@
+/**
+ * Fixed capacity cache of values keyed by non-negative node pointers. Lookup,
+ * promotion and eviction are O(1): keys are found through an open addressing
+ * index and the entries live in preallocated slots linked into the lists of
+ * the eviction policy, so a cache hit allocates nothing.
+ *
+ * @param <V> type of the cached values
+ */
+public abstract class NodeCache<V> {
+
+	/**
+	 * Eviction policies a cache can be created with.
+	 */
+	public enum Policy {
+		/** evicts the least recently used node */
+		LRU,
+		/** second chance approximation of LRU, cheaper to promote on a hit */
+		CLOCK,
+		/** keeps nodes seen once in a small FIFO so scans do not flush the hot set */
+		TWO_Q;
+
+		/**
+		 * @param name lru, clock or 2q (case insensitive)
+		 * @return the matching policy
+		 */
+		public static Policy parse(String name) {
+			if (name.equalsIgnoreCase("lru")) {
+				return LRU;
+			} else if (name.equalsIgnoreCase("clock")) {
+				return CLOCK;
+			} else if (name.equalsIgnoreCase("2q") || name.equalsIgnoreCase("two_q")) {
+				return TWO_Q;
+			}
+			throw new BTreeException("Unknown cache policy " + name + ". Use lru, clock or 2q.");
+		}
+	}
+
+	/**
+	 * Creates a cache with the given policy
+	 *
+	 * @param policy eviction policy
+	 * @param capacity maximum number of values
+	 * @return the new cache
+	 */
+	public static <V> NodeCache<V> create(Policy policy, int capacity) {
+		if (capacity < 1) {
+			throw new BTreeException("Cache capacity must be positive, " + capacity + " was given.");
+		}
+		switch (policy) {
+			case CLOCK:
+				return new ClockCache<V>(capacity);
+			case TWO_Q:
+				return new TwoQueueCache<V>(capacity);
+			default:
+				return new LruCache<V>(capacity);
+		}
+	}
+
+	protected static final int NONE = -1;
+
+	protected final int capacity;
+	protected final IntIndex index;
+	protected final int[] slotKeys;
+	protected final Object[] values;
+	protected int size;
+
+	protected NodeCache(int capacity) {
+		this.capacity = capacity;
+		this.index = new IntIndex(capacity);
+		this.slotKeys = new int[capacity];
+		this.values = new Object[capacity];
+	}
+
+	/**
+	 * @return number of cached values
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return maximum number of cached values
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Retrieves a value and records the access.
+	 *
+	 * @param key pointer of the node
+	 * @return the value, or null if it is not cached
+	 */
+	public abstract V get(int key);
+
+	/**
+	 * Adds a value that is not cached yet, evicting another one if the cache
+	 * is full.
+	 *
+	 * @param key pointer of the node
+	 * @param value the node
+	 * @return the evicted value, or null if nothing was evicted
+	 */
+	public abstract V put(int key, V value);
+
+	/**
+	 * Removes a value from the cache.
+	 *
+	 * @param key pointer of the node
+	 * @return the removed value, or null if it was not cached
+	 */
+	public abstract V remove(int key);
+
+	/**
+	 * Removes the value the policy would evict next.
+	 *
+	 * @return the removed value, or null if the cache is empty
+	 */
+	public abstract V evict();
+
+	@SuppressWarnings("unchecked")
+	protected V value(int slot) {
+		return (V) values[slot];
+	}
+
+	/**
+	 * Doubly linked lists over the slots, shared by the list based policies.
+	 */
+	private static abstract class LinkedCache<V> extends NodeCache<V> {
+
+		protected final int[] prev;
+		protected final int[] next;
+		protected int free; //head of the list of unused slots
+
+		protected LinkedCache(int capacity) {
+			super(capacity);
+			prev = new int[capacity];
+			next = new int[capacity];
+			for (int i = 0; i < capacity; i++) {
+				next[i] = i + 1 < capacity ? i + 1 : NONE;
+			}
+			free = 0;
+		}
+
+		/**
+		 * A list is an int[2] of {head, tail}.
+		 */
+		protected static int[] newList() {
+			return new int[] { NONE, NONE };
+		}
+
+		protected void addFirst(int[] list, int slot) {
+			prev[slot] = NONE;
+			next[slot] = list[0];
+			if (list[0] != NONE) {
+				prev[list[0]] = slot;
+			} else {
+				list[1] = slot;
+			}
+			list[0] = slot;
+		}
+
+		protected void unlink(int[] list, int slot) {
+			if (prev[slot] != NONE) {
+				next[prev[slot]] = next[slot];
+			} else {
+				list[0] = next[slot];
+			}
+			if (next[slot] != NONE) {
+				prev[next[slot]] = prev[slot];
+			} else {
+				list[1] = prev[slot];
+			}
+		}
+
+		protected int claimSlot(int key, V value) {
+			int slot = free;
+			free = next[slot];
+			slotKeys[slot] = key;
+			values[slot] = value;
+			index.put(key, slot);
+			size++;
+			return slot;
+		}
+
+		protected V releaseSlot(int slot) {
+			V value = value(slot);
+			index.remove(slotKeys[slot]);
+			values[slot] = null;
+			next[slot] = free;
+			free = slot;
+			size--;
+			return value;
+		}
+	}
+
+	/**
+	 * Least recently used eviction.
+	 */
+	private static class LruCache<V> extends LinkedCache<V> {
+
+		private final int[] list = newList();
+
+		LruCache(int capacity) {
+			super(capacity);
+		}
+
+		public V get(int key) {
+			int slot = index.get(key);
+			if (slot == NONE) {
+				return null;
+			}
+			if (list[0] != slot) {
+				unlink(list, slot);
+				addFirst(list, slot);
+			}
+			return value(slot);
+		}
+
+		public V put(int key, V value) {
+			V evicted = size == capacity ? evict() : null;
+			addFirst(list, claimSlot(key, value));
+			return evicted;
+		}
+
+		public V remove(int key) {
+			int slot = index.get(key);
+			if (slot == NONE) {
+				return null;
+			}
+			unlink(list, slot);
+			return releaseSlot(slot);
+		}
+
+		public V evict() {
+			int slot = list[1];
+			if (slot == NONE) {
+				return null;
+			}
+			unlink(list, slot);
+			return releaseSlot(slot);
+		}
+	}
+
+	/**
+	 * CLOCK (second chance) eviction. A hit only sets a reference bit.
+	 */
+	private static class ClockCache<V> extends NodeCache<V> {
+
+		private final boolean[] referenced;
+		private int hand;
+
+		ClockCache(int capacity) {
+			super(capacity);
+			referenced = new boolean[capacity];
+		}
+
+		public V get(int key) {
+			int slot = index.get(key);
+			if (slot == NONE) {
+				return null;
+			}
+			referenced[slot] = true;
+			return value(slot);
+		}
+
+		public V put(int key, V value) {
+			V evicted = null;
+			int slot;
+			if (size == capacity) {
+				slot = victim();
+				evicted = value(slot);
+				index.remove(slotKeys[slot]);
+				size--;
+			} else {
+				slot = emptySlot();
+			}
+			slotKeys[slot] = key;
+			values[slot] = value;
+			referenced[slot] = false;
+			index.put(key, slot);
+			size++;
+			return evicted;
+		}
+
+		public V remove(int key) {
+			int slot = index.get(key);
+			if (slot == NONE) {
+				return null;
+			}
+			return clear(slot);
+		}
+
+		public V evict() {
+			if (size == 0) {
+				return null;
+			}
+			return clear(victim());
+		}
+
+		/**
+		 * Advances the hand past referenced slots, clearing their bits.
+		 */
+		private int victim() {
+			while (values[hand] == null || referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) % capacity;
+			}
+			int slot = hand;
+			hand = (hand + 1) % capacity;
+			return slot;
+		}
+
+		private int emptySlot() {
+			while (values[hand] != null) {
+				hand = (hand + 1) % capacity;
+			}
+			return hand;
+		}
+
+		private V clear(int slot) {
+			V value = value(slot);
+			index.remove(slotKeys[slot]);
+			values[slot] = null;
+			referenced[slot] = false;
+			size--;
+			return value;
+		}
+	}
+
+	/**
+	 * Full 2Q eviction: nodes seen once wait in the FIFO A1in, the keys of
+	 * nodes evicted from A1in are remembered in the ghost queue A1out, and a
+	 * node that is requested again while its key is in A1out goes to the LRU
+	 * list Am of hot nodes.
+	 */
+	private static class TwoQueueCache<V> extends LinkedCache<V> {
+
+		private final int[] in = newList();
+		private final int[] hot = newList();
+		private final boolean[] isHot;
+		private final int inCapacity;
+		private int inSize;
+
+		private final IntIndex ghostIndex; //key to position in ghosts
+		private final int[] ghosts; //FIFO ring of A1out keys
+		private int ghostHead;
+		private int ghostSize;
+
+		TwoQueueCache(int capacity) {
+			super(capacity);
+			isHot = new boolean[capacity];
+			inCapacity = Math.max(1, capacity / 4);
+			int ghostCapacity = Math.max(1, capacity / 2);
+			ghosts = new int[ghostCapacity];
+			ghostIndex = new IntIndex(ghostCapacity);
+		}
+
+		public V get(int key) {
+			int slot = index.get(key);
+			if (slot == NONE) {
+				return null;
+			}
+			if (isHot[slot] && hot[0] != slot) {
+				unlink(hot, slot);
+				addFirst(hot, slot);
+			}
+			return value(slot);
+		}
+
+		public V put(int key, V value) {
+			V evicted = size == capacity ? evict() : null;
+			int slot = claimSlot(key, value);
+			if (ghostIndex.get(key) != NONE) { //seen recently, so it is hot
+				ghostIndex.remove(key);
+				isHot[slot] = true;
+				addFirst(hot, slot);
+			} else {
+				isHot[slot] = false;
+				addFirst(in, slot);
+				inSize++;
+			}
+			return evicted;
+		}
+
+		public V remove(int key) {
+			int slot = index.get(key);
+			if (slot == NONE) {
+				return null;
+			}
+			return drop(slot);
+		}
+
+		public V evict() {
+			if (size == 0) {
+				return null;
+			}
+			if (inSize > inCapacity || hot[1] == NONE) {
+				int slot = in[1];
+				remember(slotKeys[slot]);
+				return drop(slot);
+			}
+			return drop(hot[1]);
+		}
+
+		private V drop(int slot) {
+			if (isHot[slot]) {
+				unlink(hot, slot);
+			} else {
+				unlink(in, slot);
+				inSize--;
+			}
+			return releaseSlot(slot);
+		}
+
+		/**
+		 * Adds a key to A1out, forgetting the oldest one if it is full.
+		 */
+		private void remember(int key) {
+			if (ghostSize == ghosts.length) {
+				int oldest = ghosts[ghostHead];
+				if (ghostIndex.get(oldest) == ghostHead) {
+					ghostIndex.remove(oldest);
+				}
+				ghostHead = (ghostHead + 1) % ghosts.length;
+				ghostSize--;
+			}
+			int position = (ghostHead + ghostSize) % ghosts.length;
+			ghosts[position] = key;
+			ghostIndex.put(key, position);
+			ghostSize++;
+		}
+	}
+
+	/**
+	 * Open addressing map from non-negative int keys to int values with
+	 * linear probing and backward shift deletion, so it never fills with
+	 * tombstones.
+	 */
+	protected static class IntIndex {
+
+		private final int[] keys;
+		private final int[] entries;
+		private final int mask;
+
+		IntIndex(int capacity) {
+			int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+			keys = new int[tableSize];
+			entries = new int[tableSize];
+			mask = tableSize - 1;
+			java.util.Arrays.fill(keys, NONE);
+		}
+
+		private int home(int key) {
+			int h = key * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		/**
+		 * @return the value for the key, or NONE
+		 */
+		int get(int key) {
+			int i = home(key);
+			while (keys[i] != NONE) {
+				if (keys[i] == key) {
+					return entries[i];
+				}
+				i = (i + 1) & mask;
+			}
+			return NONE;
+		}
+
+		void put(int key, int value) {
+			int i = home(key);
+			while (keys[i] != NONE && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			entries[i] = value;
+		}
+
+		void remove(int key) {
+			int i = home(key);
+			while (keys[i] != key) {
+				if (keys[i] == NONE) {
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			//shift back the following entries of the probe sequence
+			int hole = i;
+			i = (i + 1) & mask;
+			while (keys[i] != NONE) {
+				int h = home(keys[i]);
+				if (((i - h) & mask) >= ((i - hole) & mask)) {
+					keys[hole] = keys[i];
+					entries[hole] = entries[i];
+					hole = i;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[hole] = NONE;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+import java.nio.ByteBuffer;
+
+/**
+ * On-disk layout of a BTree node of degree t: 2t - 1 slots of a 4 byte
+ * frequency and an 8 byte sequence, with unused slots zeroed, followed by 2t
+ * 4 byte child pointers, all zero for a leaf. Nodes are decoded and encoded
+ * with absolute gets and puts at an offset, so a buffer shared between
+ * threads, such as a file mapping, needs no locking to be read. This is
+ * the layout of version 0 files, and of version 2 files with each node
+ * padded to a page; subclasses lay out other versions and decide when a
+ * node is full and where it is split.
+ */
+public class NodeFormat {
+
+	private static final int SLOT_SIZE = 12;
+	private static final int POINTER_SIZE = 4;
+
+	protected final int t;
+	protected final int nodeSize;
+
+	/**
+	 * @param t degree of the tree
+	 */
+	public NodeFormat(int t) {
+		this(t, 32 * t - 12);
+	}
+
+	/**
+	 * @param t degree of the tree
+	 * @param nodeSize number of bytes a node takes in the file, at least the 32t - 12 of its slots
+	 */
+	public NodeFormat(int t, int nodeSize) {
+		if (nodeSize < 32 * t - 12) {
+			throw new BTreeException("A node of degree " + t + " takes " + (32 * t - 12) + " bytes, more than the "
+					+ nodeSize + " bytes of a page.\n");
+		}
+		this.t = t;
+		this.nodeSize = nodeSize;
+	}
+
+	/**
+	 * @return number of bytes a node takes in the file
+	 */
+	public int nodeSize() {
+		return nodeSize;
+	}
+
+	/**
+	 * @return the most keys a node can hold
+	 */
+	public int maxKeys() {
+		return 2 * t - 1;
+	}
+
+	/**
+	 * Reads a node. A node is a leaf if children[0] is 0 afterwards.
+	 *
+	 * @param page buffer holding the node
+	 * @param offset index of the node's first byte in the buffer
+	 * @param keys receives the sequences in ascending order
+	 * @param frequencies receives the frequency of each sequence
+	 * @param children receives the child pointers
+	 * @return the number of keys in the node
+	 */
+	public int decode(ByteBuffer page, int offset, long[] keys, int[] frequencies, int[] children) {
+		int size = 0;
+		for (int i = 0; i < 2 * t - 1; i++) {
+			int slot = offset + i * SLOT_SIZE;
+			int frequency = page.getInt(slot);
+
+			if (frequency != 0) {
+				keys[size] = page.getLong(slot + 4);
+				frequencies[size] = frequency;
+				size++;
+			}
+		}
+
+		int pointers = offset + (2 * t - 1) * SLOT_SIZE;
+		children[0] = page.getInt(pointers);
+		if (children[0] != 0) {
+			for (int i = 1; i < size + 1; i++) {
+				children[i] = page.getInt(pointers + i * POINTER_SIZE);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a node.
+	 *
+	 * @param page buffer to write the node into
+	 * @param offset index of the node's first byte in the buffer
+	 * @param size number of keys in the node
+	 * @param keys the sequences in ascending order
+	 * @param frequencies the frequency of each sequence
+	 * @param children the child pointers
+	 * @param leaf true if the node has no children
+	 */
+	public void encode(ByteBuffer page, int offset, int size, long[] keys, int[] frequencies, int[] children, boolean leaf) {
+		for (int i = 0; i < 2 * t - 1; i++) { //unused slots are zeroed
+			int slot = offset + i * SLOT_SIZE;
+			page.putInt(slot, i < size ? frequencies[i] : 0);
+			page.putLong(slot + 4, i < size ? keys[i] : 0L);
+		}
+
+		int pointers = offset + (2 * t - 1) * SLOT_SIZE;
+		int used = leaf ? 0 : size + 1;
+		for (int i = 0; i < 2 * t; i++) {
+			page.putInt(pointers + i * POINTER_SIZE, i < used ? children[i] : 0);
+		}
+		for (int i = 32 * t - 12; i < nodeSize; i++) { //padding to the end of the page
+			page.put(offset + i, (byte) 0);
+		}
+	}
+
+	/**
+	 * @param size number of keys in the node
+	 * @param keys the sequences in ascending order
+	 * @param frequencies the frequency of each sequence
+	 * @param children the child pointers
+	 * @param leaf true if the node has no children
+	 * @return number of bytes encode would use; every node of fixed slots takes nodeSize()
+	 */
+	public int encodedSize(int size, long[] keys, int[] frequencies, int[] children, boolean leaf) {
+		return nodeSize();
+	}
+
+	/**
+	 * @param size number of keys in the node, the inserted one included
+	 * @param keys the sequences in ascending order
+	 * @param frequencies the frequency of each sequence
+	 * @param children the child pointers, with the child after the inserted key if not a leaf
+	 * @param leaf true if the node has no children
+	 * @param index where the key was inserted
+	 * @return how much encodedSize grew by inserting the key
+	 */
+	public int insertedSize(int size, long[] keys, int[] frequencies, int[] children, boolean leaf, int index) {
+		return 0;
+	}
+
+	/**
+	 * @param oldFrequency frequency of a key before the change
+	 * @param newFrequency frequency of the key after it
+	 * @return how much encodedSize grew by the change
+	 */
+	public int frequencyChange(int oldFrequency, int newFrequency) {
+		return 0;
+	}
+
+	/**
+	 * @param size number of keys in the node
+	 * @param encodedSize number of bytes the node takes encoded
+	 * @return true if the node might not have room for one more key and child
+	 */
+	public boolean isFull(int size, int encodedSize) {
+		return size >= maxKeys();
+	}
+
+	/**
+	 * Picks where a full node is split. The keys before the returned index
+	 * stay, the key at it moves up into the parent and the keys after it
+	 * move to a new node.
+	 *
+	 * @param size number of keys in the node
+	 * @param keys the sequences in ascending order
+	 * @param frequencies the frequency of each sequence
+	 * @param children the child pointers
+	 * @param leaf true if the node has no children
+	 * @return index of the key that moves up
+	 */
+	public int splitIndex(int size, long[] keys, int[] frequencies, int[] children, boolean leaf) {
+		return size / 2;
+	}
+
+	/**
+	 * @param fillFactor fraction of a node to fill, in (0, 1]
+	 * @return number of keys per node in a bulk load, or 0 if nodes are filled up to fillBytes instead
+	 */
+	public int fillKeys(double fillFactor) {
+		int target = (int) Math.round(fillFactor * maxKeys());
+		return Math.max(2, Math.min(maxKeys(), target));
+	}
+
+	/**
+	 * @param fillFactor fraction of a node to fill, in (0, 1]
+	 * @return the sum of entrySize a node may reach in a bulk load
+	 */
+	public int fillBytes(double fillFactor) {
+		return (int) (fillFactor * nodeSize());
+	}
+
+	/**
+	 * @param previousKey the key before this one in the node, -1 for the first
+	 * @param key the sequence
+	 * @param frequency the frequency of the sequence
+	 * @param child pointer to the child before the key, 0 in a leaf
+	 * @return number of bytes the key and its child add to a node
+	 */
+	public int entrySize(long previousKey, long key, int frequency, int child) {
+		return child == 0 ? SLOT_SIZE : SLOT_SIZE + POINTER_SIZE;
+	}
+}
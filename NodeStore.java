@@ -0,0 +1,489 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Storage for the pages of a BTree file. Reads and writes use FileChannel
+ * positional I/O through a pair of reused direct buffers, or, in mapped mode,
+ * go straight to a MappedByteBuffer of the file. Either way a node is decoded
+ * from and encoded into the returned buffer without intermediate arrays.
+ * <p>
+ * With write-behind the encoded pages are handed to a background thread
+ * instead of being written by the caller. The pages wait in a map by
+ * position until half the memory for them is used, then the writer takes
+ * them all, sorts them and joins pages that lie next to each other into one
+ * write. A page that is read again while it waits is copied from its buffer.
+ * Like the rest of the store, buffer, write and read must be called from one
+ * thread at a time.
+ */
+public class NodeStore {
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private boolean writable;
+	private boolean mapped;
+	private long length; //allocated length of the file
+
+	private ByteBuffer readBuffer; //reused for channel reads
+	private ByteBuffer writeBuffer; //reused for channel writes
+	private MappedByteBuffer map; //mapping of the file in mapped mode
+	private ByteBuffer view; //reused view of the mapping
+
+	private long writeBehindMemory; //bytes of pages that may wait for the writer, 0 to write directly
+	private Thread writer; //null unless writing behind
+	private HashMap<Long, ByteBuffer> pending; //encoded pages by position, not yet taken by the writer
+	private HashMap<Long, ByteBuffer> writing; //pages the writer is writing now
+	private ArrayDeque<ByteBuffer> free; //page buffers to reuse
+	private long allocated; //bytes of page buffers in use or free
+	private long pendingBytes; //bytes of the pages in pending
+	private int largestPage; //bytes of the largest page written behind
+	private boolean urgent; //the caller waits for the writer
+	private boolean closing;
+	private IOException failure; //first error of the writer
+
+	/**
+	 * Opens the store for the given file
+	 *
+	 * @param fileName name of the file
+	 * @param writable open the file read-write instead of read-only
+	 * @param mapped access the file through a memory mapping
+	 * @throws IOException if the file cannot be opened
+	 */
+	public NodeStore(String fileName, boolean writable, boolean mapped) throws IOException {
+		this.file = new RandomAccessFile(fileName, writable ? "rw" : "r");
+		this.channel = file.getChannel();
+		this.writable = writable;
+		this.mapped = mapped;
+		this.length = channel.size();
+		this.readBuffer = ByteBuffer.allocateDirect(4096);
+		this.writeBuffer = ByteBuffer.allocateDirect(4096);
+	}
+
+	/**
+	 * Opens the store for the given file, writing the pages on a background
+	 * thread if writeBehindMemory is not 0 and the file is writable and not
+	 * mapped.
+	 *
+	 * @param fileName name of the file
+	 * @param writable open the file read-write instead of read-only
+	 * @param mapped access the file through a memory mapping
+	 * @param writeBehindMemory bytes of pages that may wait to be written, 0 to write them directly
+	 * @throws IOException if the file cannot be opened
+	 */
+	public NodeStore(String fileName, boolean writable, boolean mapped, long writeBehindMemory) throws IOException {
+		this(fileName, writable, mapped);
+		if (writable && !mapped && writeBehindMemory > 0) {
+			this.writeBehindMemory = writeBehindMemory;
+			this.pending = new HashMap<Long, ByteBuffer>();
+			this.writing = new HashMap<Long, ByteBuffer>();
+			this.free = new ArrayDeque<ByteBuffer>();
+			this.writer = new Thread(new Runnable() {
+				public void run() {
+					writePending();
+				}
+			}, "NodeStore writer " + fileName);
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * @return true if the file was opened read-write
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * @return true if the store is backed by a memory mapping
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * @return the allocated length of the file
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Sets the allocated length of the file, e.g. to truncate a new file.
+	 *
+	 * @param newLength the new length
+	 */
+	public void setLength(long newLength) {
+		length = newLength;
+	}
+
+	/**
+	 * Reserves space for a page at the end of the file. No I/O is done until
+	 * the page is written. Trees address their nodes by int byte offsets, so
+	 * the file may not grow past Integer.MAX_VALUE bytes.
+	 *
+	 * @param size of the page
+	 * @return position of the page
+	 */
+	public long allocate(int size) {
+		if (length + size > Integer.MAX_VALUE) {
+			throw new BTreeException("The BTree file would grow past " + Integer.MAX_VALUE
+					+ " bytes, the largest position a node pointer can hold. Use smaller pages or a partitioned tree.");
+		}
+		long position = length;
+		length += size;
+		return position;
+	}
+
+	/**
+	 * Returns a buffer holding the bytes of the file at the given position.
+	 * The buffer is reused by the next call to read.
+	 *
+	 * @param position of the bytes
+	 * @param size number of bytes
+	 * @return buffer positioned at the first byte with its limit after the last
+	 * @throws IOException if the read fails
+	 */
+	public ByteBuffer read(long position, int size) throws IOException {
+		if (mapped) {
+			return mappedView(position, size);
+		}
+
+		readBuffer = ensureCapacity(readBuffer, size);
+		readBuffer.clear();
+		readBuffer.limit(size);
+
+		if (writer != null) {
+			// A page written at this position is served while it waits. Reads
+			// of several pages wait until every page has reached the file.
+			ByteBuffer page = waitingPage(position);
+			if (page != null && page.limit() == size) {
+				ByteBuffer bytes = page.duplicate();
+				bytes.position(0);
+				readBuffer.put(bytes);
+				readBuffer.position(0);
+				return readBuffer;
+			}
+			if (page != null || size > largestPage) {
+				drain();
+			}
+		}
+
+		while (readBuffer.hasRemaining()) {
+			if (channel.read(readBuffer, position + readBuffer.position()) < 0) {
+				break;
+			}
+		}
+		while (readBuffer.hasRemaining()) { //allocated but never written
+			readBuffer.put((byte) 0);
+		}
+		readBuffer.position(0);
+		return readBuffer;
+	}
+
+	/**
+	 * Returns a buffer to encode the bytes for the given position into. The
+	 * bytes reach the file on the next call to write.
+	 *
+	 * @param position of the bytes
+	 * @param size number of bytes
+	 * @return buffer positioned at the first byte with its limit after the last
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public ByteBuffer buffer(long position, int size) throws IOException {
+		if (!writable) {
+			throw new BTreeException("The BTree file was opened read-only.");
+		}
+		if (mapped) {
+			return mappedView(position, size);
+		}
+		if (writer != null) {
+			writeBuffer = pageBuffer(size);
+			return writeBuffer;
+		}
+
+		writeBuffer = ensureCapacity(writeBuffer, size);
+		writeBuffer.clear();
+		writeBuffer.limit(size);
+		return writeBuffer;
+	}
+
+	/**
+	 * Writes the buffer returned by the last call to buffer, from its start
+	 * up to its limit, whether it was filled with relative or absolute puts.
+	 *
+	 * @param position of the bytes
+	 * @throws IOException if the write fails
+	 */
+	public void write(long position) throws IOException {
+		if (mapped) {
+			return; //already encoded into the mapping
+		}
+		if (writer != null) {
+			writeBuffer.position(0);
+			synchronized (this) {
+				ByteBuffer replaced = pending.put(position, writeBuffer);
+				pendingBytes += writeBuffer.limit();
+				largestPage = Math.max(largestPage, writeBuffer.limit());
+				if (replaced != null) { //not yet taken, so only the newer page is written
+					pendingBytes -= replaced.limit();
+					free.add(replaced);
+				}
+				if (pendingBytes >= writeBehindMemory / 2) { //enough for the writer to sort and join
+					notifyAll();
+				}
+			}
+			writeBuffer = null;
+			return;
+		}
+
+		writeBuffer.position(0);
+		while (writeBuffer.hasRemaining()) {
+			channel.write(writeBuffer, position + writeBuffer.position());
+		}
+	}
+
+	/**
+	 * Sets the file to its allocated length and closes it.
+	 *
+	 * @throws IOException if the file cannot be closed
+	 */
+	public void close() throws IOException {
+		if (writer != null) {
+			flush();
+		}
+		map = null;
+		view = null;
+		if (writable) {
+			if (mapped) {
+				channel.truncate(length);
+			} else {
+				file.setLength(length);
+			}
+		}
+		file.close();
+	}
+
+	/**
+	 * Waits until the background writer has written every page handed to it
+	 * and stops it.
+	 *
+	 * @throws IOException if the writer failed
+	 */
+	private void flush() throws IOException {
+		synchronized (this) {
+			closing = true;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Takes a free page buffer of at least size bytes, or allocates one,
+	 * waiting for the writer if the pages held would exceed the memory for
+	 * writing behind.
+	 */
+	private synchronized ByteBuffer pageBuffer(int size) throws IOException {
+		while (true) {
+			if (failure != null) {
+				throw failure;
+			}
+			ByteBuffer buffer = free.poll();
+			if (buffer != null && buffer.capacity() >= size) {
+				buffer.clear();
+				buffer.limit(size);
+				return buffer;
+			}
+			if (buffer != null) { //too small for the page, let a larger one take its memory
+				allocated -= buffer.capacity();
+			}
+			if (allocated == 0 || allocated + size <= writeBehindMemory) {
+				allocated += size;
+				buffer = ByteBuffer.allocateDirect(size);
+				buffer.limit(size);
+				return buffer;
+			}
+			if (free.isEmpty()) {
+				urgent = true;
+				notifyAll();
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new BTreeException("Interrupted while waiting for the BTree file to be written.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the buffer of the page waiting to be written at the position, null if none
+	 */
+	private synchronized ByteBuffer waitingPage(long position) {
+		ByteBuffer page = pending.isEmpty() ? null : pending.get(position);
+		if (page == null && !writing.isEmpty()) {
+			page = writing.get(position);
+		}
+		return page;
+	}
+
+	/**
+	 * Waits until the writer has written every page handed to it.
+	 *
+	 * @throws IOException if the writer failed
+	 */
+	private synchronized void drain() throws IOException {
+		while (!pending.isEmpty() || !writing.isEmpty()) {
+			if (failure != null) {
+				throw failure;
+			}
+			urgent = true;
+			notifyAll();
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new BTreeException("Interrupted while waiting for the BTree file to be written.");
+			}
+		}
+	}
+
+	/**
+	 * Runs on the writer thread. Takes all waiting pages at once and writes
+	 * them in order of position, joining neighbouring pages into one write.
+	 * Their buffers are freed only once all are written, so a page can be
+	 * served from its buffer until it is in the file.
+	 */
+	private void writePending() {
+		ByteBuffer run = ByteBuffer.allocateDirect(1024 * 1024);
+		while (true) {
+			synchronized (this) {
+				while (pending.isEmpty() || (pendingBytes < writeBehindMemory / 2 && !urgent && !closing)) {
+					if (pending.isEmpty() && closing) {
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						failure = new IOException("The BTree file writer was interrupted.");
+						notifyAll();
+						return;
+					}
+				}
+				HashMap<Long, ByteBuffer> taken = writing;
+				writing = pending;
+				pending = taken;
+				pendingBytes = 0;
+				urgent = false;
+			}
+
+			long[] positions = new long[writing.size()];
+			int count = 0;
+			for (Long position : writing.keySet()) {
+				positions[count++] = position;
+			}
+			Arrays.sort(positions);
+
+			try {
+				long runPosition = -1;
+				run.clear();
+				for (long position : positions) {
+					ByteBuffer bytes = writing.get(position).duplicate();
+					bytes.position(0);
+					if (runPosition >= 0 && (position != runPosition + run.position() || bytes.remaining() > run.remaining())) {
+						writeRun(run, runPosition);
+						runPosition = -1;
+					}
+					if (bytes.remaining() > run.capacity()) {
+						writeRun(bytes, position);
+						continue;
+					}
+					if (runPosition < 0) {
+						runPosition = position;
+					}
+					run.put(bytes);
+				}
+				if (runPosition >= 0) {
+					writeRun(run, runPosition);
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+
+			synchronized (this) {
+				free.addAll(writing.values());
+				writing.clear();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes the bytes up to the position of the buffer, or all remaining if
+	 * it was not filled by puts, and clears it.
+	 */
+	private void writeRun(ByteBuffer bytes, long position) throws IOException {
+		if (bytes.position() > 0) {
+			bytes.flip();
+		}
+		while (bytes.hasRemaining()) {
+			position += channel.write(bytes, position);
+		}
+		bytes.clear();
+	}
+
+	/**
+	 * Returns the reused view of the mapping for the given bytes, remapping
+	 * the file if it has grown past the mapping.
+	 */
+	private ByteBuffer mappedView(long position, int size) throws IOException {
+		long end = position + size;
+
+		if (map == null || end > map.capacity()) {
+			if (end > Integer.MAX_VALUE) {
+				throw new BTreeException("The BTree file is too large to be mapped.");
+			}
+			long mapLength = writable ? Math.min(Integer.MAX_VALUE, Math.max(end, 2 * length)) : channel.size();
+			map = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, mapLength);
+			view = map.duplicate();
+		}
+
+		view.clear();
+		view.position((int) position);
+		view.limit((int) end);
+		return view;
+	}
+
+	/**
+	 * @return the buffer, or a larger direct buffer if it cannot hold size bytes
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int size) {
+		if (buffer.capacity() < size) {
+			return ByteBuffer.allocateDirect(size);
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,490 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A k-mer index split into 4^p independent BTrees by the first p bases of
+ * each k-mer (the top 2p bits of its 2-bit encoding). Every partition has its
+ * own file and cache, and a manifest file ties them together. Because the
+ * partitions share nothing, insertion runs on a pool of worker threads, each
+ * owning a fixed set of partitions, without any locks; each partition also
+ * stays shallower than a single tree over all k-mers would be.
+ * <p>
+ * The partitions are separate files rather than regions of one file, since
+ * a BTree grows its file at the end. Every partition holds its own file,
+ * cache, pinned tier and, with write-behind, writer thread, and the memory
+ * settings are split over them. So p is kept to at most MAX_PREFIX_LENGTH
+ * bases, 64 partitions, which already gives more partitions than threads.
+ */
+public class PartitionedBTree implements KmerSink, KmerBatchSink, KmerIndex {
+
+	private static final long MAGIC = 0x4B4D455250415254L; //"KMERPART"
+	private static final int VERSION = 1;
+	private static final int BATCH_SIZE = 4096;
+	private static final int RING_CAPACITY = 16;
+	private static final int MAX_PREFIX_LENGTH = 3; //4^3 = 64 partition files
+
+	private String manifestFile;
+	private int prefixLength;
+	private int sequenceLength;
+	private int degree;
+	private int shift; //moves the prefix bases of a k-mer to the bottom
+	private String[] partitionFiles;
+	private BTree[] partitions; //null when opened for searching only
+	private KmerIndex[] indexes; //the partitions as searched, dumped and closed
+	private Worker[] workers; //null when inserting on the caller's thread
+	private boolean writable;
+
+	/**
+	 * Creates a new partitioned tree
+	 *
+	 * @param manifestFile name of the manifest file; partitions are stored next to it
+	 * @param prefixLength number of leading bases that select the partition
+	 * @param t degree of each partition
+	 * @param sequenceLength the length of the sequence
+	 * @param config cache and storage settings; the cache size is split over the partitions
+	 * @param threads number of insertion threads, 0 to insert on the caller's thread
+	 */
+	public PartitionedBTree(String manifestFile, int prefixLength, int t, int sequenceLength, BTreeConfig config, int threads) {
+		if (prefixLength < 1 || prefixLength > MAX_PREFIX_LENGTH || prefixLength > sequenceLength) {
+			throw new BTreeException("The partition prefix must be between 1 and " + MAX_PREFIX_LENGTH
+					+ " bases and at most the sequence length. " + prefixLength + " was given.\n");
+		}
+		this.manifestFile = manifestFile;
+		this.prefixLength = prefixLength;
+		this.sequenceLength = sequenceLength;
+		this.degree = t;
+		this.shift = 2 * (sequenceLength - prefixLength);
+		this.writable = true;
+
+		int count = 1 << (2 * prefixLength);
+		BTreeConfig partitionConfig = partitionConfig(config, count);
+		partitionFiles = new String[count];
+		partitions = new BTree[count];
+		for (int i = 0; i < count; i++) {
+			partitionFiles[i] = new File(manifestFile).getName() + ".part" + i;
+			partitions[i] = new BTree(t, sequenceLength, resolve(partitionFiles[i]), partitionConfig);
+		}
+		indexes = partitions;
+
+		startWorkers(threads);
+	}
+
+	/**
+	 * Opens a partitioned tree from its manifest for searching. With
+	 * config.threadSafe set the partitions are opened as BTreeReaders and
+	 * the tree may be queried from several threads.
+	 *
+	 * @param manifestFile name of the manifest file
+	 * @param config cache and storage settings; the cache size is split over the partitions
+	 */
+	public PartitionedBTree(String manifestFile, BTreeConfig config) {
+		this(manifestFile, config, 0);
+	}
+
+	/**
+	 * Opens a partitioned tree from its manifest. With config.append set the
+	 * partitions are opened read-write and more sequences may be inserted.
+	 *
+	 * @param manifestFile name of the manifest file
+	 * @param config cache and storage settings; the cache size is split over the partitions
+	 * @param threads number of insertion threads when appending, 0 to insert on the caller's thread
+	 */
+	public PartitionedBTree(String manifestFile, BTreeConfig config, int threads) {
+		if (config.append && config.threadSafe) {
+			throw new BTreeException("A partitioned tree opened for several searching threads cannot be appended to.");
+		}
+		this.manifestFile = manifestFile;
+		this.writable = config.append;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+			if (in.readLong() != MAGIC) {
+				in.close();
+				throw new BTreeException(manifestFile + " is not a partitioned BTree manifest.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				in.close();
+				throw new BTreeException("Unsupported manifest version " + version + ".");
+			}
+			prefixLength = in.readInt();
+			sequenceLength = in.readInt();
+			degree = in.readInt();
+			int count = in.readInt();
+			partitionFiles = new String[count];
+			for (int i = 0; i < count; i++) {
+				partitionFiles[i] = in.readUTF();
+			}
+			in.close();
+		} catch (FileNotFoundException e) {
+			throw new BTreeException("Could not open manifest " + manifestFile + ".");
+		} catch (IOException e) {
+			throw new BTreeException("Could not read manifest " + manifestFile + ": " + e.getMessage());
+		}
+		shift = 2 * (sequenceLength - prefixLength);
+
+		BTreeConfig partitionConfig = partitionConfig(config, partitionFiles.length);
+		if (writable) {
+			partitions = new BTree[partitionFiles.length];
+			for (int i = 0; i < partitions.length; i++) {
+				partitions[i] = new BTree(resolve(partitionFiles[i]), partitionConfig);
+			}
+			indexes = partitions;
+			startWorkers(threads);
+			return;
+		}
+		indexes = new KmerIndex[partitionFiles.length];
+		for (int i = 0; i < indexes.length; i++) {
+			if (config.threadSafe) {
+				indexes[i] = new BTreeReader(resolve(partitionFiles[i]), partitionConfig);
+			} else {
+				indexes[i] = new BTree(resolve(partitionFiles[i]), partitionConfig);
+			}
+		}
+	}
+
+	/**
+	 * Starts the insertion threads, each owning every threads-th partition.
+	 *
+	 * @param threads number of insertion threads, 0 to insert on the caller's thread
+	 */
+	private void startWorkers(int threads) {
+		if (threads > 0) {
+			workers = new Worker[Math.min(threads, partitions.length)];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Worker(i);
+				workers[i].start();
+			}
+		}
+	}
+
+	/**
+	 * @param fileName name of a file
+	 * @return true if the file starts like a partitioned tree manifest
+	 */
+	public static boolean isManifest(String fileName) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+			try {
+				return in.readLong() == MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the settings for one of count partitions
+	 */
+	private static BTreeConfig partitionConfig(BTreeConfig config, int count) {
+		BTreeConfig partitionConfig = new BTreeConfig();
+		partitionConfig.cacheSize = config.cacheSize == 0 ? 0 : Math.max(1, config.cacheSize / count);
+		partitionConfig.pinnedMemory = config.pinnedMemory / count;
+		partitionConfig.cachePolicy = config.cachePolicy;
+		partitionConfig.mapped = config.mapped;
+		partitionConfig.writeBehind = config.writeBehind / count;
+		partitionConfig.compressed = config.compressed;
+		partitionConfig.canonical = config.canonical;
+		partitionConfig.pageSize = config.pageSize;
+		partitionConfig.threadSafe = config.threadSafe;
+		partitionConfig.append = config.append;
+		partitionConfig.metrics = config.metrics; //shared, so the partitions add up
+		return partitionConfig;
+	}
+
+	/**
+	 * @return the path of a partition file, relative to the manifest's directory
+	 */
+	private String resolve(String partitionFile) {
+		File parent = new File(manifestFile).getAbsoluteFile().getParentFile();
+		return new File(parent, partitionFile).getPath();
+	}
+
+	/**
+	 * @param sequence in 2-bit long form
+	 * @return the partition the sequence belongs to
+	 */
+	public int partition(long sequence) {
+		return (int) (sequence >>> shift);
+	}
+
+	/**
+	 * @return number of partitions
+	 */
+	public int partitionCount() {
+		return indexes.length;
+	}
+
+	public int sequenceLength() {
+		return sequenceLength;
+	}
+
+	/**
+	 * The degree the partitions were built with, which the manifest records
+	 * as 0 when each took the degree that fills a page.
+	 */
+	public int degree() {
+		return indexes[0].degree();
+	}
+
+	/**
+	 * The partitions are created with the same settings, so the first one stands for all.
+	 */
+	public boolean isCanonical() {
+		return indexes[0].isCanonical();
+	}
+
+	public int frequency(String sequence) {
+		KmerEncoder.checkLength(sequence, sequenceLength);
+		long key = KmerEncoder.encode(sequence);
+		return frequency(isCanonical() ? KmerEncoder.canonical(key, sequenceLength) : key);
+	}
+
+	public int frequency(long sequence) {
+		return indexes[partition(sequence)].frequency(sequence);
+	}
+
+	/**
+	 * Splits the sorted range at the partition boundaries, which follow key
+	 * order, and looks up each part in its partition.
+	 */
+	public void frequencyBatch(long[] sortedKeys, int from, int to, int[] frequencies) {
+		int i = from;
+		while (i < to) {
+			int partition = partition(sortedKeys[i]);
+			int end = i + 1;
+			while (end < to && partition(sortedKeys[end]) == partition) {
+				end++;
+			}
+			indexes[partition].frequencyBatch(sortedKeys, i, end, frequencies);
+			i = end;
+		}
+	}
+
+	/**
+	 * Walks the partitions the range covers in prefix order, which is
+	 * ascending key order.
+	 */
+	public KmerCursor cursor(final long from, final long to) {
+		awaitWorkers();
+		final int last = (int) Math.min(indexes.length - 1, to >>> shift);
+		return new KmerCursor() {
+			private int next = partition(Math.max(0, from));
+			private KmerCursor current;
+
+			public boolean next() {
+				while (current == null || !current.next()) {
+					if (next > last || from > to) {
+						return false;
+					}
+					current = indexes[next++].cursor(from, to);
+				}
+				return true;
+			}
+
+			public long key() {
+				return current.key();
+			}
+
+			public long high() {
+				return 0;
+			}
+
+			public int frequency() {
+				return current.frequency();
+			}
+		};
+	}
+
+	/**
+	 * Scans the partitions on up to threads threads, each partition on one
+	 * thread at a time, and merges their most frequent sequences.
+	 */
+	public TopKmers topN(int n, int threads) {
+		awaitWorkers();
+		long[] from = new long[indexes.length];
+		long[] to = new long[indexes.length];
+		Arrays.fill(to, Long.MAX_VALUE);
+		return TopKmers.scan(indexes, from, to, n, threads);
+	}
+
+	public void add(long kmer) {
+		insert(kmer, 1);
+	}
+
+	public void insertBatch(long[] keys, int[] counts, int length) {
+		for (int i = 0; i < length; i++) {
+			insert(keys[i], counts[i]);
+		}
+	}
+
+	/**
+	 * Adds count occurrences of a sequence to its partition. Only one thread
+	 * may insert at a time; the workers do the tree work.
+	 *
+	 * @param sequence in 2-bit long form
+	 * @param count number of occurrences to add
+	 */
+	public void insert(long sequence, int count) {
+		int partition = partition(sequence);
+		if (workers == null) {
+			partitions[partition].insert(sequence, count);
+		} else {
+			workers[partition % workers.length].put(sequence, count);
+		}
+	}
+
+	/**
+	 * Dumps the partitions in prefix order, which is ascending key order.
+	 */
+	public void dump(FileWriter dumpFile) {
+		awaitWorkers();
+		for (KmerIndex partition : indexes) {
+			partition.dump(dumpFile);
+		}
+	}
+
+	/**
+	 * dumps the contents of the partitions into a "dump" file
+	 */
+	public void dump() {
+		try {
+			FileWriter dumpFile = new FileWriter("dump");
+			dump(dumpFile);
+			dumpFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Waits for the workers, closes every partition and writes the manifest.
+	 */
+	public void close() {
+		awaitWorkers();
+		for (KmerIndex partition : indexes) {
+			partition.close();
+		}
+		if (!writable) {
+			return;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifestFile)));
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(prefixLength);
+			out.writeInt(sequenceLength);
+			out.writeInt(degree);
+			out.writeInt(partitionFiles.length);
+			for (String partitionFile : partitionFiles) {
+				out.writeUTF(partitionFile);
+			}
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Hands the last batches to the workers and waits until they have
+	 * inserted everything. Inserts after this run on the caller's thread.
+	 */
+	private void awaitWorkers() {
+		if (workers == null) {
+			return;
+		}
+		for (Worker worker : workers) {
+			worker.finish();
+		}
+		Throwable failure = null;
+		for (Worker worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new BTreeException("Interrupted while waiting for the insert threads.");
+			}
+			if (failure == null) {
+				failure = worker.failure;
+			}
+		}
+		workers = null;
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure != null) {
+			throw new BTreeException("Insert failed: " + failure);
+		}
+	}
+
+	/**
+	 * Inserts the (sequence, count) pairs for the partitions it owns, which
+	 * are those whose index modulo the number of workers is its own.
+	 */
+	private class Worker extends Thread {
+
+		private final LongRingBuffer ring = new LongRingBuffer(RING_CAPACITY, BATCH_SIZE);
+		private long[] batch;
+		private int length;
+		private volatile Throwable failure;
+
+		Worker(int index) {
+			super("partition-insert-" + index);
+		}
+
+		/**
+		 * Producer side: queues a pair for this worker.
+		 */
+		void put(long sequence, int count) {
+			if (batch == null) {
+				batch = ring.claim();
+			}
+			batch[length++] = sequence;
+			batch[length++] = count;
+			if (length == batch.length) {
+				ring.publish(length);
+				batch = null;
+				length = 0;
+			}
+		}
+
+		/**
+		 * Producer side: publishes the partial batch and closes the ring.
+		 */
+		void finish() {
+			if (length > 0) {
+				ring.publish(length);
+				batch = null;
+				length = 0;
+			}
+			ring.close();
+		}
+
+		public void run() {
+			try {
+				long[] pairs = ring.take();
+				while (pairs != null) {
+					int pairsLength = ring.length();
+					for (int i = 0; i < pairsLength; i += 2) {
+						long sequence = pairs[i];
+						partitions[partition(sequence)].insert(sequence, (int) pairs[i + 1]);
+					}
+					ring.release();
+					pairs = ring.take();
+				}
+			} catch (Throwable e) {
+				failure = e;
+				ring.fail(e);
+			}
+		}
+	}
+}
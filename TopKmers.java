@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The n most frequent k-mers of a stream, kept in a bounded heap over two
+ * long arrays and an int array; the high words stay 0 unless the k-mers are
+ * longer than 31 bases. The root of the heap is the least of the kept
+ * k-mers, so a k-mer that is not more frequent than it costs a single
+ * compare, and a scan of the whole index needs memory for n k-mers only.
+ * Of two k-mers with the same frequency the smaller one ranks higher.
+ * Once read, the k-mers are in rank order and no more may be offered.
+ */
+public class TopKmers {
+
+	private final long[] highs;
+	private final long[] keys;
+	private final int[] frequencies;
+	private int size;
+	private boolean sorted;
+
+	/**
+	 * @param n most k-mers to keep
+	 */
+	public TopKmers(int n) {
+		if (n < 0) {
+			throw new BTreeException("The number of k-mers must not be negative. " + n + " was given.");
+		}
+		highs = new long[n];
+		keys = new long[n];
+		frequencies = new int[n];
+	}
+
+	/**
+	 * Scans ranges of indexes on a pool of threads, each range with its own
+	 * heap, and merges the heaps.
+	 *
+	 * @param indexes index of each range; an index may appear more than once only if it can be read from several threads
+	 * @param from smallest k-mer of each range
+	 * @param to largest k-mer of each range, included
+	 * @param n most k-mers to keep
+	 * @param threads number of threads
+	 * @return the n most frequent k-mers of all ranges
+	 */
+	public static TopKmers scan(final KmerIndex[] indexes, final long[] from, final long[] to, final int n, int threads) {
+		TopKmers top = new TopKmers(n);
+		if (threads <= 1 || indexes.length == 1) {
+			for (int i = 0; i < indexes.length; i++) {
+				top.addAll(indexes[i].cursor(from[i], to[i]));
+			}
+			return top;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, indexes.length));
+		try {
+			ArrayList<Future<TopKmers>> parts = new ArrayList<Future<TopKmers>>(indexes.length);
+			for (int i = 0; i < indexes.length; i++) {
+				final int range = i;
+				parts.add(pool.submit(new Callable<TopKmers>() {
+					public TopKmers call() {
+						TopKmers part = new TopKmers(n);
+						part.addAll(indexes[range].cursor(from[range], to[range]));
+						return part;
+					}
+				}));
+			}
+			for (Future<TopKmers> part : parts) {
+				top.addAll(part.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BTreeException("Interrupted while waiting for the scan threads.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new BTreeException("Scan failed: " + e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return top;
+	}
+
+	/**
+	 * Offers every k-mer of a cursor.
+	 */
+	public void addAll(KmerCursor cursor) {
+		while (cursor.next()) {
+			offer(cursor.high(), cursor.key(), cursor.frequency());
+		}
+	}
+
+	/**
+	 * Offers the k-mers another heap kept, e.g. the heap of another range.
+	 */
+	public void addAll(TopKmers other) {
+		for (int i = 0; i < other.size; i++) {
+			offer(other.highs[i], other.keys[i], other.frequencies[i]);
+		}
+	}
+
+	/**
+	 * Keeps the k-mer if fewer than n are kept or it ranks above the least
+	 * of them, which it then replaces.
+	 *
+	 * @param key k-mer in 2-bit long form
+	 * @param frequency its frequency
+	 */
+	public void offer(long key, int frequency) {
+		offer(0, key, frequency);
+	}
+
+	/**
+	 * Keeps the k-mer if fewer than n are kept or it ranks above the least
+	 * of them, which it then replaces.
+	 *
+	 * @param high the bases before the last 32 of a k-mer longer than 31 bases, otherwise 0
+	 * @param key the k-mer, or its last 32 bases, in 2-bit long form
+	 * @param frequency its frequency
+	 */
+	public void offer(long high, long key, int frequency) {
+		if (sorted) {
+			throw new BTreeException("No k-mers may be offered once the top k-mers were read.");
+		}
+		if (size < keys.length) {
+			highs[size] = high;
+			keys[size] = key;
+			frequencies[size] = frequency;
+			siftUp(size++);
+		} else if (size > 0 && below(highs[0], keys[0], frequencies[0], high, key, frequency)) {
+			highs[0] = high;
+			keys[0] = key;
+			frequencies[0] = frequency;
+			siftDown(0, size);
+		}
+	}
+
+	/**
+	 * @return number of k-mers kept, at most n
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param rank 0 for the most frequent k-mer
+	 * @return the bases before the last 32 of the k-mer of the rank, 0 if it has at most 31 bases
+	 */
+	public long high(int rank) {
+		sort();
+		return highs[rank];
+	}
+
+	/**
+	 * @param rank 0 for the most frequent k-mer
+	 * @return the k-mer of the rank, or its last 32 bases, in 2-bit long form
+	 */
+	public long key(int rank) {
+		sort();
+		return keys[rank];
+	}
+
+	/**
+	 * @param rank 0 for the most frequent k-mer
+	 * @return the frequency of the k-mer of the rank
+	 */
+	public int frequency(int rank) {
+		sort();
+		return frequencies[rank];
+	}
+
+	/**
+	 * Sorts the heap in place by moving the least k-mer to the end until it is empty.
+	 */
+	private void sort() {
+		if (sorted) {
+			return;
+		}
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		sorted = true;
+	}
+
+	/**
+	 * @return true if k-mer a ranks below k-mer b
+	 */
+	private static boolean below(long highA, long keyA, int frequencyA, long highB, long keyB, int frequencyB) {
+		return frequencyA < frequencyB || (frequencyA == frequencyB && WideBTree.compare(highA, keyA, highB, keyB) > 0);
+	}
+
+	private boolean below(int a, int b) {
+		return below(highs[a], keys[a], frequencies[a], highs[b], keys[b], frequencies[b]);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!below(i, parent)) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int end) {
+		while (true) {
+			int least = i;
+			int left = 2 * i + 1;
+			if (left < end && below(left, least)) {
+				least = left;
+			}
+			if (left + 1 < end && below(left + 1, least)) {
+				least = left + 1;
+			}
+			if (least == i) {
+				return;
+			}
+			swap(i, least);
+			i = least;
+		}
+	}
+
+	private void swap(int a, int b) {
+		long high = highs[a];
+		highs[a] = highs[b];
+		highs[b] = high;
+		long key = keys[a];
+		keys[a] = keys[b];
+		keys[b] = key;
+		int frequency = frequencies[a];
+		frequencies[a] = frequencies[b];
+		frequencies[b] = frequency;
+	}
+}
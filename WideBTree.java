@@ -0,0 +1,750 @@
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A BTree of k-mers of 32 to 63 bases, whose 2-bit encodings take two
+ * longs. Each key is kept as a high and a low word in two parallel long
+ * arrays and compared high word first, the low word unsigned, which is the
+ * order of the bases. Nodes use fixed slots as in version 0, widened to a
+ * 4 byte frequency and two 8 byte words, behind a version 3 header:
+ * 2t - 1 slots of 20 bytes followed by 2t child pointers, padded to a page
+ * if the tree has a page size.
+ * <p>
+ * Insertion and lookup work as in BTree, with a cache of the same policies
+ * but no pinned tier. The long form methods of KmerIndex need keys of one
+ * long; their wide forms take the high and low word of each key, and
+ * cursors, ranges and top-N queries return the high word of each k-mer
+ * alongside its low word.
+ * <p>
+ * Sequences are at most 63 bases: the high word holds at most 31 of them in
+ * 62 bits, so it is never negative and compares as a signed long. Longer
+ * sequences would need a third word and are rejected when the tree is
+ * created.
+ */
+public class WideBTree implements WideKmerSink, KmerIndex {
+
+	private static final int SLOT_SIZE = 20;
+	private static final int POINTER_SIZE = 4;
+	private static final int WRITE_BUFFER_SIZE = 16; //dirty nodes held back when there is no cache
+	private static final int DEFAULT_PAGE_SIZE = 4096; //the degree without a page size fills this much
+
+	private int t;
+	private int sequenceLength;
+	private int nodeSize;
+	private BTreeHeader header;
+	private NodeStore store;
+	private Node root;
+	private NodeCache<Node> cache;
+	private boolean keepClean; //false if the cache only holds dirty nodes
+	private int height;
+	private BTreeMetrics metrics; //null unless the config asks for metrics
+
+	/**
+	 * Creates a new tree for the given file
+	 *
+	 * @param t degree of the tree, 0 for the largest that fits a page
+	 * @param sequenceLength the length of the sequence, from 32 to 63
+	 * @param fileName name of the file
+	 * @param config cache and storage settings; compressed nodes are not supported
+	 */
+	public WideBTree(int t, int sequenceLength, String fileName, BTreeConfig config) {
+		if (sequenceLength < 32 || sequenceLength > WideKmerEncoder.MAX_SEQUENCE_LENGTH) {
+			throw new BTreeException("Wide sequence length must be between 32 and " + WideKmerEncoder.MAX_SEQUENCE_LENGTH
+					+ " (inclusive). " + sequenceLength + " was given.\n");
+		}
+		if (config.compressed) {
+			throw new BTreeException("Compressed nodes are not supported for sequences longer than 31 bases.\n");
+		}
+		if (config.pageSize != 0 && !BTreeHeader.isValidPageSize(config.pageSize)) {
+			throw new BTreeException("The page size must be a power of two from " + BTreeHeader.MIN_PAGE_SIZE + " to "
+					+ BTreeHeader.MAX_PAGE_SIZE + " bytes. " + config.pageSize + " was given.\n");
+		}
+		if (t == 0) { //the largest degree whose slots fit the page
+			t = ((config.pageSize > 0 ? config.pageSize : DEFAULT_PAGE_SIZE) + 20) / 48;
+		} else if (t < 2) {
+			throw new BTreeException("Degree " + t + " was given. This is an invalid degree.\n");
+		}
+		if (config.pageSize > 0 && slotsSize(t) > config.pageSize) {
+			throw new BTreeException("A node of degree " + t + " takes " + slotsSize(t) + " bytes, more than the "
+					+ config.pageSize + " bytes of a page.\n");
+		}
+		this.t = t;
+		this.sequenceLength = sequenceLength;
+		this.header = BTreeHeader.createWide(config.canonical, t, sequenceLength, slotsSize(t), config.pageSize);
+		this.nodeSize = header.nodeSize;
+		this.metrics = config.metrics;
+		createCache(config);
+
+		try {
+			store = new NodeStore(fileName, true, config.mapped, config.writeBehind);
+			store.setLength(header.size());
+			root = new Node();
+			root.dirty = true; //written on close even if nothing is inserted
+			setHeight(1);
+			writeHeader();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Opens a tree from disk for searching, or with config.append set for
+	 * inserting more sequences
+	 *
+	 * @param fileName name of the file
+	 * @param config cache and storage settings
+	 */
+	public WideBTree(String fileName, BTreeConfig config) {
+		this.metrics = config.metrics;
+		createCache(config);
+		try {
+			store = new NodeStore(fileName, config.append, config.mapped, config.writeBehind);
+			header = BTreeHeader.read(store.read(0, (int) Math.min(BTreeHeader.SIZE, store.length())));
+			if (header.version != BTreeHeader.VERSION_WIDE) {
+				throw new BTreeException(fileName + " holds sequences of at most 31 bases; open it with a BTree.");
+			}
+			t = header.t;
+			sequenceLength = header.sequenceLength;
+			nodeSize = header.nodeSize;
+			root = new Node(header.rootPointer);
+			int levels = 1;
+			for (Node node = root; !node.leaf; node = new Node(node.children[0])) {
+				levels++;
+			}
+			setHeight(levels);
+		} catch (FileNotFoundException e) {
+			throw new BTreeException("Could not open BTree file " + fileName + ".");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param fileName name of a file
+	 * @return true if the file starts with the header of a tree of k-mers longer than 31 bases
+	 */
+	public static boolean isWide(String fileName) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+			try {
+				return in.readInt() == BTreeHeader.MAGIC && in.readInt() == BTreeHeader.VERSION_WIDE;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Compares two keys in the order of their bases.
+	 *
+	 * @return negative, zero or positive as the first key is less than, equal to or greater than the second
+	 */
+	public static int compare(long high1, long low1, long high2, long low2) {
+		if (high1 != high2) {
+			return high1 < high2 ? -1 : 1; //at most 62 bits, never negative
+		}
+		return Long.compareUnsigned(low1, low2);
+	}
+
+	/**
+	 * @return bytes of the slots and pointers of a node of degree t
+	 */
+	private static int slotsSize(int t) {
+		return (2 * t - 1) * SLOT_SIZE + 2 * t * POINTER_SIZE;
+	}
+
+	/**
+	 * @param config settings holding the cache size and policy
+	 */
+	private void createCache(BTreeConfig config) {
+		if (config.cacheSize < 0) {
+			throw new BTreeException("Negative cache size of " + config.cacheSize + " was given");
+		}
+		keepClean = config.cacheSize > 0;
+		cache = keepClean ? NodeCache.<Node>create(config.cachePolicy, config.cacheSize)
+				: NodeCache.<Node>create(NodeCache.Policy.LRU, WRITE_BUFFER_SIZE);
+	}
+
+	private void setHeight(int levels) {
+		height = levels;
+		if (metrics != null) {
+			metrics.height(levels);
+		}
+	}
+
+	public int sequenceLength() {
+		return sequenceLength;
+	}
+
+	/**
+	 * @return degree of the tree
+	 */
+	public int degree() {
+		return t;
+	}
+
+	public boolean isCanonical() {
+		return header.isCanonical();
+	}
+
+	/**
+	 * @param sequence as a string, which a canonical tree maps to its stored form
+	 * @return the frequency of the sequence, 0 if it is not in the tree
+	 */
+	public int frequency(String sequence) {
+		KmerEncoder.checkLength(sequence, sequenceLength);
+		long high = WideKmerEncoder.high(sequence);
+		long low = WideKmerEncoder.low(sequence);
+		if (header.isCanonical()) {
+			long reverseHigh = WideKmerEncoder.reverseComplementHigh(high, low, sequenceLength);
+			long reverseLow = WideKmerEncoder.reverseComplementLow(high, low, sequenceLength);
+			if (compare(reverseHigh, reverseLow, high, low) < 0) {
+				return frequency(reverseHigh, reverseLow);
+			}
+		}
+		return frequency(high, low);
+	}
+
+	/**
+	 * @param high the first bases of the sequence in 2-bit long form
+	 * @param low the last 32 bases in 2-bit long form
+	 * @return the frequency of the sequence, 0 if it is not in the tree
+	 */
+	public int frequency(long high, long low) {
+		long start = metrics == null ? 0 : System.nanoTime();
+		Node node = root;
+		while (true) {
+			int i = node.search(high, low);
+			if (i >= 0 || node.leaf) {
+				if (metrics != null) {
+					metrics.searched(System.nanoTime() - start);
+				}
+				return i >= 0 ? node.frequencies[i] : 0;
+			}
+			node = node.child(-i - 1);
+		}
+	}
+
+	/**
+	 * Not supported: a sequence longer than 31 bases does not fit in a long;
+	 * see frequency(long, long).
+	 */
+	public int frequency(long sequence) {
+		throw unsupported("Lookups by one long");
+	}
+
+	/**
+	 * Not supported: a sequence longer than 31 bases does not fit in a long;
+	 * see frequencyBatch(long[], long[], int, int, int[]).
+	 */
+	public void frequencyBatch(long[] sortedKeys, int from, int to, int[] frequencies) {
+		throw unsupported("Batched lookups by one long");
+	}
+
+	/**
+	 * Not supported: a sequence longer than 31 bases does not fit in a long;
+	 * see cursor(long, long, long, long).
+	 */
+	public KmerCursor cursor(long from, long to) {
+		throw unsupported("Cursors between single longs");
+	}
+
+	private BTreeException unsupported(String what) {
+		return new BTreeException(what + " are not supported for sequences of " + sequenceLength + " bases.");
+	}
+
+	/**
+	 * Looks up sorted sequences in a single walk of the tree, as
+	 * BTree.frequencyBatch does.
+	 *
+	 * @param sortedHighs the first bases of each sequence
+	 * @param sortedLows the last 32 bases of each sequence, the keys ascending in the range
+	 * @param from index of the first sequence
+	 * @param to index after the last sequence
+	 * @param frequencies receives the frequency of sequence i at index i, 0 if it is not in the tree
+	 */
+	public void frequencyBatch(long[] sortedHighs, long[] sortedLows, int from, int to, int[] frequencies) {
+		if (from < to) {
+			root.frequencyBatch(sortedHighs, sortedLows, from, to, frequencies);
+		}
+	}
+
+	/**
+	 * Walks the keys from the one at or after the first key. Leaves are not
+	 * added to the cache, so a long scan does not evict the nodes that point
+	 * lookups need.
+	 *
+	 * @param fromHigh the first bases of the smallest sequence
+	 * @param fromLow the last 32 bases of the smallest sequence
+	 * @param toHigh the first bases of the largest sequence
+	 * @param toLow the last 32 bases of the largest sequence, included
+	 * @return a cursor over the sequences in the range that are in the tree
+	 */
+	public KmerCursor cursor(long fromHigh, long fromLow, long toHigh, long toLow) {
+		return new Cursor(fromHigh, fromLow, toHigh, toLow);
+	}
+
+	/**
+	 * Scans on the caller's thread, as the nodes and the cache of a tree
+	 * belong to one thread.
+	 */
+	public TopKmers topN(int n, int threads) {
+		TopKmers top = new TopKmers(n);
+		top.addAll(cursor(0, 0, Long.MAX_VALUE, -1L)); //-1 is the largest low word unsigned
+		return top;
+	}
+
+	/**
+	 * Adds one occurrence of a sequence
+	 */
+	public void add(long high, long low) {
+		insert(high, low, 1);
+	}
+
+	/**
+	 * Adds occurrences of a sequence, splitting full nodes on the way down
+	 * as BTree does.
+	 *
+	 * @param high the first bases of the sequence in 2-bit long form
+	 * @param low the last 32 bases in 2-bit long form
+	 * @param count number of occurrences to add
+	 */
+	public void insert(long high, long low, int count) {
+		long start = metrics == null ? 0 : System.nanoTime();
+		if (root.size == 2 * t - 1) {
+			Node previousRoot = root;
+			root = new Node();
+			root.children[0] = previousRoot.pointer;
+			root.leaf = false;
+			previousRoot.markDirty(); //no longer the root, so it goes to the cache
+			root.splitChild(0);
+			setHeight(height + 1);
+		}
+		root.insertNonfull(high, low, count);
+		if (metrics != null) {
+			metrics.inserted(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * dumps the contents of the file into the given writer
+	 * @param dumpFile where the lines are written
+	 */
+	public void dump(FileWriter dumpFile) {
+		root.dump(dumpFile);
+	}
+
+	/**
+	 * Make sure everything is written to disk and close the file. The tree
+	 * will not be usable after calling this method.
+	 */
+	public void close() {
+		try {
+			if (!store.isWritable()) {
+				store.close();
+				return;
+			}
+			writeHeader();
+			root.write();
+			Node node = cache.evict();
+			while (node != null) {
+				node.isCached = false;
+				node.write();
+				node = cache.evict();
+			}
+			store.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the header, with the current root pointer, to the start of the file
+	 */
+	private void writeHeader() throws IOException {
+		header.rootPointer = root.pointer;
+		header.write(store.buffer(0, header.size()));
+		store.write(0);
+	}
+
+	/**
+	 * A node with its keys split over two word arrays.
+	 */
+	private class Node {
+
+		final long[] highs = new long[2 * t - 1];
+		final long[] lows = new long[2 * t - 1];
+		final int[] frequencies = new int[2 * t - 1];
+		final int[] children = new int[2 * t];
+		int size;
+		boolean leaf;
+		final int pointer;
+		boolean isCached;
+		boolean dirty;
+
+		/**
+		 * Creates a new empty leaf on the disk
+		 */
+		Node() {
+			pointer = (int) store.allocate(nodeSize);
+			leaf = true;
+		}
+
+		/**
+		 * Reads the node at the pointer
+		 */
+		Node(int pointer) {
+			this.pointer = pointer;
+			try {
+				ByteBuffer page = store.read(pointer, nodeSize);
+				int offset = page.position();
+				for (int i = 0; i < 2 * t - 1; i++) {
+					int slot = offset + i * SLOT_SIZE;
+					int frequency = page.getInt(slot);
+					if (frequency != 0) {
+						frequencies[size] = frequency;
+						highs[size] = page.getLong(slot + 4);
+						lows[size] = page.getLong(slot + 12);
+						size++;
+					}
+				}
+				int pointers = offset + (2 * t - 1) * SLOT_SIZE;
+				for (int i = 0; i < size + 1; i++) {
+					children[i] = page.getInt(pointers + i * POINTER_SIZE);
+				}
+				leaf = children[0] == 0;
+				if (metrics != null) {
+					metrics.nodeRead(nodeSize);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Writes the node to the disk if it changed since it was last written.
+		 */
+		void write() {
+			if (!dirty) {
+				return;
+			}
+			try {
+				ByteBuffer page = store.buffer(pointer, nodeSize);
+				int offset = page.position();
+				for (int i = 0; i < 2 * t - 1; i++) { //unused slots are zeroed
+					int slot = offset + i * SLOT_SIZE;
+					page.putInt(slot, i < size ? frequencies[i] : 0);
+					page.putLong(slot + 4, i < size ? highs[i] : 0L);
+					page.putLong(slot + 12, i < size ? lows[i] : 0L);
+				}
+				int pointers = offset + (2 * t - 1) * SLOT_SIZE;
+				int used = leaf ? 0 : size + 1;
+				for (int i = 0; i < 2 * t; i++) {
+					page.putInt(pointers + i * POINTER_SIZE, i < used ? children[i] : 0);
+				}
+				for (int i = slotsSize(t); i < nodeSize; i++) { //padding to the end of the page
+					page.put(offset + i, (byte) 0);
+				}
+				store.write(pointer);
+				if (metrics != null) {
+					metrics.nodeWritten(nodeSize);
+				}
+				dirty = false;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Records that the node changed. The node is written when it leaves
+		 * the cache or on close; the root is never cached.
+		 */
+		void markDirty() {
+			dirty = true;
+			if (!isCached && this != root) {
+				add(this);
+			}
+		}
+
+		/**
+		 * Binary search for a key among the keys of this node.
+		 *
+		 * @return index of the key if found, otherwise (-(insertion point) - 1)
+		 */
+		int search(long high, long low) {
+			int from = 0;
+			int to = size - 1;
+			while (from <= to) {
+				int middle = (from + to) >>> 1;
+				int order = compare(highs[middle], lows[middle], high, low);
+				if (order < 0) {
+					from = middle + 1;
+				} else if (order > 0) {
+					to = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return -(from + 1);
+		}
+
+		/**
+		 * @return child of the given index, from the cache if it holds it
+		 */
+		Node child(int index) {
+			int childPointer = children[index];
+			Node child = cache.get(childPointer);
+			if (metrics != null) {
+				if (child == null) {
+					metrics.cacheMiss();
+				} else {
+					metrics.cacheHit();
+				}
+			}
+			if (child == null) {
+				child = new Node(childPointer);
+				if (keepClean) {
+					add(child);
+				}
+			}
+			return child;
+		}
+
+		void insertNonfull(long high, long low, int count) {
+			int i = search(high, low);
+			if (i >= 0) {
+				frequencies[i] += count;
+				markDirty();
+				return;
+			}
+			i = -i - 1;
+			if (leaf) {
+				insertKey(i, high, low, count);
+				markDirty();
+				return;
+			}
+			Node childNode = child(i);
+			if (childNode.size < 2 * t - 1) {
+				childNode.insertNonfull(high, low, count);
+				return;
+			}
+			splitChild(i);
+			int order = compare(high, low, highs[i], lows[i]);
+			if (order == 0) {
+				frequencies[i] += count;
+				markDirty();
+			} else {
+				child(order > 0 ? i + 1 : i).insertNonfull(high, low, count);
+			}
+		}
+
+		private void insertKey(int index, long high, long low, int frequency) {
+			System.arraycopy(highs, index, highs, index + 1, size - index);
+			System.arraycopy(lows, index, lows, index + 1, size - index);
+			System.arraycopy(frequencies, index, frequencies, index + 1, size - index);
+			highs[index] = high;
+			lows[index] = low;
+			frequencies[index] = frequency;
+			size++;
+		}
+
+		/**
+		 * Splits the full child at the index around its median key, which moves up into this node.
+		 */
+		void splitChild(int index) {
+			Node currentChild = child(index);
+			Node newChild = new Node();
+			if (metrics != null) {
+				metrics.split();
+			}
+
+			int median = currentChild.size / 2;
+			int moved = currentChild.size - median - 1;
+			System.arraycopy(currentChild.highs, median + 1, newChild.highs, 0, moved);
+			System.arraycopy(currentChild.lows, median + 1, newChild.lows, 0, moved);
+			System.arraycopy(currentChild.frequencies, median + 1, newChild.frequencies, 0, moved);
+			newChild.size = moved;
+			newChild.leaf = currentChild.leaf;
+			if (!currentChild.leaf) {
+				System.arraycopy(currentChild.children, median + 1, newChild.children, 0, moved + 1);
+			}
+
+			System.arraycopy(children, index + 1, children, index + 2, size - index);
+			children[index + 1] = newChild.pointer;
+			insertKey(index, currentChild.highs[median], currentChild.lows[median], currentChild.frequencies[median]);
+			currentChild.size = median;
+
+			markDirty();
+			currentChild.markDirty();
+			newChild.markDirty();
+		}
+
+		/**
+		 * Looks up a sorted range of sequences in this subtree, descending
+		 * into each child once with the sequences that belong below it.
+		 */
+		void frequencyBatch(long[] sortedHighs, long[] sortedLows, int from, int to, int[] result) {
+			int i = from;
+			while (i < to) {
+				int found = search(sortedHighs[i], sortedLows[i]);
+				if (found >= 0) {
+					result[i++] = frequencies[found];
+					continue;
+				}
+
+				int c = -found - 1;
+				int end = i + 1; //the sequences below key c all go to child c
+				while (end < to && (c == size || compare(sortedHighs[end], sortedLows[end], highs[c], lows[c]) < 0)) {
+					end++;
+				}
+				if (leaf) {
+					Arrays.fill(result, i, end, 0);
+				} else {
+					child(c).frequencyBatch(sortedHighs, sortedLows, i, end, result);
+				}
+				i = end;
+			}
+		}
+
+		void dump(FileWriter dumpFile) {
+			for (int i = 0; i <= size; i++) {
+				if (!leaf) {
+					child(i).dump(dumpFile);
+				}
+				if (i < size) {
+					try {
+						dumpFile.write(frequencies[i] + " " + WideKmerEncoder.decode(highs[i], lows[i], sequenceLength) + "\n");
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * In-order walk of the tree with a stack of the nodes from the root to
+	 * the current key, as in BTree: 2i stands for child i, 2i + 1 for key i.
+	 */
+	private class Cursor implements KmerCursor {
+
+		private final long toHigh;
+		private final long toLow;
+		private final Node[] path = new Node[height];
+		private final int[] positions = new int[height];
+		private int depth;
+		private long high;
+		private long low;
+		private int frequency;
+
+		Cursor(long fromHigh, long fromLow, long toHigh, long toLow) {
+			this.toHigh = toHigh;
+			this.toLow = toLow;
+			if (compare(fromHigh, fromLow, toHigh, toLow) > 0) {
+				return;
+			}
+			Node node = root;
+			while (true) {
+				int i = node.search(fromHigh, fromLow);
+				if (i >= 0 || node.leaf) { //the next key is key i, or the first after the node
+					push(node, i >= 0 ? 2 * i + 1 : -2 * i - 1);
+					return;
+				}
+				i = -i - 1;
+				push(node, 2 * i + 1); //key i follows child i
+				node = descend(node, i);
+			}
+		}
+
+		public boolean next() {
+			while (depth > 0) {
+				Node node = path[depth - 1];
+				int position = positions[depth - 1]++;
+				if (position > 2 * node.size) {
+					depth--;
+				} else if ((position & 1) == 0) {
+					if (!node.leaf) {
+						int c = position / 2;
+						if (c > 0 && compare(node.highs[c - 1], node.lows[c - 1], toHigh, toLow) >= 0) {
+							break; //the child only holds larger keys
+						}
+						push(descend(node, c), 0);
+					}
+				} else {
+					int k = position / 2;
+					if (compare(node.highs[k], node.lows[k], toHigh, toLow) > 0) {
+						break;
+					}
+					high = node.highs[k];
+					low = node.lows[k];
+					frequency = node.frequencies[k];
+					return true;
+				}
+			}
+			depth = 0;
+			return false;
+		}
+
+		public long key() {
+			return low;
+		}
+
+		public long high() {
+			return high;
+		}
+
+		public int frequency() {
+			return frequency;
+		}
+
+		private void push(Node node, int position) {
+			path[depth] = node;
+			positions[depth] = position;
+			depth++;
+		}
+
+		/**
+		 * @return child c of the node, from the cache if it holds it; a leaf read from the file is not cached
+		 */
+		private Node descend(Node node, int c) {
+			int pointer = node.children[c];
+			Node child = cache.get(pointer);
+			if (metrics != null) {
+				if (child == null) {
+					metrics.cacheMiss();
+				} else {
+					metrics.cacheHit();
+				}
+			}
+			if (child == null) {
+				child = new Node(pointer);
+				if (keepClean && !child.leaf) {
+					add(child);
+				}
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * Adds a node to the cache, writing the node it evicts if it is dirty.
+	 */
+	private void add(Node node) {
+		Node evicted = cache.put(node.pointer, node);
+		if (evicted != null) {
+			evicted.isCached = false;
+			evicted.write();
+			if (metrics != null) {
+				metrics.cacheEviction();
+			}
+		}
+		node.isCached = true;
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * Rolling 2-bit encoder for k-mers of 32 to 63 bases, which take two longs.
+ * The low word holds the last 32 bases, all 64 of its bits, and the high
+ * word the bases before them; a new base shifts into the low word and the
+ * base it pushes out moves into the high word. As with KmerEncoder no
+ * strings or arrays are built per k-mer.
+ * <p>
+ * In canonical mode the reverse complement is kept in a second pair of
+ * words shifted the other way, and the lesser pair is emitted.
+ */
+public class WideKmerEncoder implements BaseSink {
+
+	/** the most bases a wide k-mer may have */
+	public static final int MAX_SEQUENCE_LENGTH = 63;
+
+	private static final int LOW_BASES = 32;
+
+	private final int sequenceLength;
+	private final long highMask;
+	private final WideKmerSink sink;
+	private final boolean canonical;
+	private final int topShift; //moves a base to the first position of the high word
+	private long high;
+	private long low;
+	private long reverseHigh; //reverse complement of the window
+	private long reverseLow;
+	private int filled;
+
+	/**
+	 * @param sequenceLength the length of the k-mers to emit, from 32 to 63
+	 * @param canonical emit the lesser of each k-mer and its reverse complement
+	 * @param sink receives every complete k-mer, e.g. a WideBTree
+	 */
+	public WideKmerEncoder(int sequenceLength, boolean canonical, WideKmerSink sink) {
+		if (sequenceLength < LOW_BASES || sequenceLength > MAX_SEQUENCE_LENGTH) {
+			throw new BTreeException("Wide sequence length must be between " + LOW_BASES + " and " + MAX_SEQUENCE_LENGTH
+					+ " (inclusive). " + sequenceLength + " was given.\n");
+		}
+		this.sequenceLength = sequenceLength;
+		this.highMask = (1L << (2 * (sequenceLength - LOW_BASES))) - 1;
+		this.sink = sink;
+		this.canonical = canonical;
+		this.topShift = 2 * (sequenceLength - LOW_BASES - 1);
+		reset();
+	}
+
+	/**
+	 * @param sequence string of 32 to 63 bases
+	 * @return the bases before the last 32 in 2-bit long form
+	 */
+	public static long high(String sequence) {
+		return encode(sequence, 0, sequence.length() - LOW_BASES);
+	}
+
+	/**
+	 * @param sequence string of 32 to 63 bases
+	 * @return the last 32 bases in 2-bit long form
+	 */
+	public static long low(String sequence) {
+		return encode(sequence, sequence.length() - LOW_BASES, sequence.length());
+	}
+
+	/**
+	 * @return the bases from index from to index to in 2-bit long form
+	 */
+	private static long encode(String sequence, int from, int to) {
+		long word = 0;
+		for (int i = from; i < to; i++) {
+			int code = KmerEncoder.encode(sequence.charAt(i));
+			if (code < 0) {
+				throw new BTreeException("Unexpected character: " + sequence.charAt(i));
+			}
+			word = (word << 2) | code;
+		}
+		return word;
+	}
+
+	/**
+	 * @param high the first bases of a sequence in 2-bit long form
+	 * @param low the last 32 bases in 2-bit long form
+	 * @param sequenceLength number of bases in the sequence
+	 * @return the sequence as a string of upper case bases
+	 */
+	public static String decode(long high, long low, int sequenceLength) {
+		return KmerEncoder.decode(high, sequenceLength - LOW_BASES) + KmerEncoder.decode(low, LOW_BASES);
+	}
+
+	/**
+	 * @param high the first bases of a sequence in 2-bit long form
+	 * @param low the last 32 bases in 2-bit long form
+	 * @param sequenceLength number of bases in the sequence
+	 * @return the high word of the reverse complement of the sequence
+	 */
+	public static long reverseComplementHigh(long high, long low, int sequenceLength) {
+		if (sequenceLength == LOW_BASES) {
+			return 0;
+		}
+		//the reverse complement starts with the complement of the last bases, all in low
+		return KmerEncoder.reverseComplement(low, LOW_BASES) >>> (2 * (2 * LOW_BASES - sequenceLength));
+	}
+
+	/**
+	 * @param high the first bases of a sequence in 2-bit long form
+	 * @param low the last 32 bases in 2-bit long form
+	 * @param sequenceLength number of bases in the sequence
+	 * @return the low word of the reverse complement of the sequence
+	 */
+	public static long reverseComplementLow(long high, long low, int sequenceLength) {
+		int highBases = sequenceLength - LOW_BASES;
+		long lowFirst = KmerEncoder.reverseComplement(low, LOW_BASES); //the last highBases bases of it lead in high
+		long tail = highBases == 0 ? 0 : KmerEncoder.reverseComplement(high, highBases);
+		return highBases == 0 ? lowFirst : (lowFirst << (2 * highBases)) | tail;
+	}
+
+	/**
+	 * Shifts a base into the window and emits the k-mer once the window is full.
+	 * 
+	 * @param base 2-bit code of the base
+	 */
+	public void add(int base) {
+		high = ((high << 2) | (low >>> 62)) & highMask;
+		low = (low << 2) | base;
+		if (filled < sequenceLength) {
+			filled++;
+		}
+		if (!canonical) {
+			if (filled == sequenceLength) {
+				sink.add(high, low);
+			}
+			return;
+		}
+		reverseLow = (reverseLow >>> 2) | (reverseHigh << 62);
+		reverseHigh >>>= 2;
+		if (topShift >= 0) {
+			reverseHigh |= (long) (3 - base) << topShift;
+		} else { //k = 32, the first base is at the top of the low word
+			reverseLow |= (long) (3 - base) << 62;
+		}
+		if (filled == sequenceLength) {
+			if (WideBTree.compare(reverseHigh, reverseLow, high, low) < 0) {
+				sink.add(reverseHigh, reverseLow);
+			} else {
+				sink.add(high, low);
+			}
+		}
+	}
+
+	/**
+	 * Empties the window, e.g. at the end of a sequence.
+	 */
+	public void reset() {
+		high = 0;
+		low = 0;
+		reverseHigh = 0;
+		reverseLow = 0;
+		filled = 0;
+	}
+}
@@ -0,0 +1,11 @@
+/**
+ * Receives encoded k-mers longer than 31 bases from a WideKmerEncoder.
+ */
+public interface WideKmerSink {
+
+	/**
+	 * @param high the first bases of the k-mer, all but the last 32, in 2-bit long form
+	 * @param low the last 32 bases of the k-mer in 2-bit long form
+	 */
+	void add(long high, long low);
+}
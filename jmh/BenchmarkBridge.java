@@ -0,0 +1,53 @@
+import benchmarks.Bridge;
+
+/**
+ * Implements the benchmarks' Bridge on top of the project's classes. It
+ * lives in the default package with them.
+ */
+public class BenchmarkBridge implements Bridge {
+
+	public Tree createTree(String fileName, int degree, int sequenceLength, int cacheSize) {
+		final BTree tree = new BTree(degree, sequenceLength, fileName, BTreeConfig.withCache(cacheSize));
+		return new Tree() {
+			public void insert(long sequence) {
+				tree.insert(sequence);
+			}
+
+			public int frequency(long sequence) {
+				return tree.frequency(sequence);
+			}
+
+			public void close() {
+				tree.close();
+			}
+		};
+	}
+
+	public Cache createCache(String policy, int capacity) {
+		final NodeCache<Object> cache = NodeCache.create(NodeCache.Policy.parse(policy), capacity);
+		return new Cache() {
+			public Object get(int pointer) {
+				return cache.get(pointer);
+			}
+
+			public Object put(int pointer, Object node) {
+				return cache.put(pointer, node);
+			}
+		};
+	}
+
+	public long encode(String sequence) {
+		return KmerEncoder.encode(sequence);
+	}
+
+	public long parse(String fileName, int sequenceLength) {
+		final long[] count = new long[1];
+		KmerEncoder encoder = new KmerEncoder(sequenceLength, new KmerSink() {
+			public void add(long kmer) {
+				count[0]++;
+			}
+		});
+		GeneBankCreateBTree.parse(fileName, encoder);
+		return count[0];
+	}
+}
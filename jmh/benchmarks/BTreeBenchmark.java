@@ -0,0 +1,135 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BTree.insert and BTree.frequency over random 12-mers for several degrees
+ * and cache sizes. Every iteration starts from a new tree, so insertion
+ * measures a tree growing from empty to a few hundred thousand keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BTreeBenchmark {
+
+	private static final int SEQUENCE_LENGTH = 12;
+	private static final int KEYS = 1 << 18;
+
+	/**
+	 * A tree that insert grows from empty each iteration.
+	 */
+	@State(Scope.Thread)
+	public static class InsertState {
+
+		@Param({ "2", "16", "64" })
+		public int degree;
+
+		@Param({ "0", "100", "1000" })
+		public int cacheSize;
+
+		Bridge.Tree tree;
+		File file;
+		long[] keys;
+		int next;
+
+		@Setup(Level.Trial)
+		public void createKeys() {
+			keys = randomKeys(KEYS, 1);
+		}
+
+		@Setup(Level.Iteration)
+		public void createTree() throws IOException {
+			file = File.createTempFile("insert", ".btree");
+			tree = Bridge.Loader.load().createTree(file.getPath(), degree, SEQUENCE_LENGTH, cacheSize);
+			next = 0;
+		}
+
+		@TearDown(Level.Iteration)
+		public void closeTree() {
+			tree.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * A tree holding KEYS random sequences, queried with a mix of present
+	 * and absent ones.
+	 */
+	@State(Scope.Thread)
+	public static class QueryState {
+
+		@Param({ "2", "16", "64" })
+		public int degree;
+
+		@Param({ "0", "100", "1000" })
+		public int cacheSize;
+
+		Bridge.Tree tree;
+		File file;
+		long[] queries;
+		int next;
+
+		@Setup(Level.Trial)
+		public void createTree() throws IOException {
+			file = File.createTempFile("query", ".btree");
+			tree = Bridge.Loader.load().createTree(file.getPath(), degree, SEQUENCE_LENGTH, cacheSize);
+			long[] keys = randomKeys(KEYS, 2);
+			for (long key : keys) {
+				tree.insert(key);
+			}
+			long[] absent = randomKeys(KEYS, 3);
+			queries = new long[KEYS];
+			for (int i = 0; i < KEYS; i++) {
+				queries[i] = (i & 1) == 0 ? keys[i] : absent[i];
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void closeTree() {
+			tree.close();
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	public void insert(InsertState state) {
+		state.tree.insert(state.keys[state.next]);
+		state.next = (state.next + 1) & (KEYS - 1);
+	}
+
+	@Benchmark
+	public int frequency(QueryState state) {
+		int frequency = state.tree.frequency(state.queries[state.next]);
+		state.next = (state.next + 1) & (KEYS - 1);
+		return frequency;
+	}
+
+	static long[] randomKeys(int count, long seed) {
+		Random random = new Random(seed);
+		long[] keys = new long[count];
+		long mask = (1L << (2 * SEQUENCE_LENGTH)) - 1;
+		for (int i = 0; i < count; i++) {
+			keys[i] = random.nextLong() & mask;
+		}
+		return keys;
+	}
+}
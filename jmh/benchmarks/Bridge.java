@@ -0,0 +1,84 @@
+package benchmarks;
+
+/**
+ * The benchmarks' view of the project. JMH cannot generate code for
+ * benchmarks in the default package, and classes in a named package cannot
+ * refer to the default package, so the project's classes are reached
+ * through this interface. BenchmarkBridge implements it in the default
+ * package and is loaded once by name; after that every call is an ordinary
+ * monomorphic interface call that the JIT inlines.
+ */
+public interface Bridge {
+
+	/**
+	 * Creates a new tree
+	 *
+	 * @param fileName name of the tree file
+	 * @param degree degree of the tree
+	 * @param sequenceLength length of the sequences
+	 * @param cacheSize number of cached nodes, 0 for none
+	 * @return the tree
+	 */
+	Tree createTree(String fileName, int degree, int sequenceLength, int cacheSize);
+
+	/**
+	 * @param policy lru, clock or 2q
+	 * @param capacity number of entries
+	 * @return a NodeCache with the given policy
+	 */
+	Cache createCache(String policy, int capacity);
+
+	/**
+	 * @param sequence string of bases
+	 * @return the sequence in 2-bit long form, as BTree.stringToLong encodes it
+	 */
+	long encode(String sequence);
+
+	/**
+	 * Runs the GeneBankCreateBTree parser and encoder over a file.
+	 *
+	 * @param fileName name of the GenBank file
+	 * @param sequenceLength length of the k-mers
+	 * @return number of k-mers produced
+	 */
+	long parse(String fileName, int sequenceLength);
+
+	/**
+	 * A BTree.
+	 */
+	interface Tree {
+
+		void insert(long sequence);
+
+		int frequency(long sequence);
+
+		void close();
+	}
+
+	/**
+	 * A NodeCache, the store behind the BTree's cache.
+	 */
+	interface Cache {
+
+		Object get(int pointer);
+
+		Object put(int pointer, Object node);
+	}
+
+	/**
+	 * Loads the implementation from the default package.
+	 */
+	final class Loader {
+
+		private Loader() {
+		}
+
+		public static Bridge load() {
+			try {
+				return (Bridge) Class.forName("BenchmarkBridge").getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("BenchmarkBridge is not on the class path.", e);
+			}
+		}
+	}
+}
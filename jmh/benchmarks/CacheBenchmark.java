@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The hit and miss paths of the node cache. A hit finds a resident node and
+ * promotes it; a miss looks up a node never seen before and puts it,
+ * evicting another, which is what BTree's cache does on every miss.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheBenchmark {
+
+	private static final Object NODE = new Object();
+
+	@Param({ "lru", "clock", "2q" })
+	public String policy;
+
+	@Param({ "1024" })
+	public int capacity;
+
+	private Bridge.Cache cache;
+	private int[] resident;
+	private int nextHit;
+	private int nextMiss;
+
+	@Setup
+	public void fill() {
+		cache = Bridge.Loader.load().createCache(policy, capacity);
+		for (int i = 0; i < capacity; i++) {
+			cache.put(i, NODE);
+		}
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		for (int i = 0; i < capacity; i++) {
+			if (cache.get(i) != null) {
+				found.add(i);
+			}
+		}
+		resident = new int[found.size()];
+		for (int i = 0; i < resident.length; i++) {
+			resident[i] = found.get(i);
+		}
+		nextMiss = capacity;
+	}
+
+	@Benchmark
+	public Object hit() {
+		Object node = cache.get(resident[nextHit]);
+		if (++nextHit == resident.length) {
+			nextHit = 0;
+		}
+		return node;
+	}
+
+	@Benchmark
+	public Object miss() {
+		int pointer = nextMiss;
+		nextMiss = (nextMiss + 1) & Integer.MAX_VALUE;
+		if (nextMiss < capacity) {
+			nextMiss = capacity; //keeps clear of the resident keys the hit benchmark uses
+		}
+		Object node = cache.get(pointer);
+		if (node == null) {
+			node = cache.put(pointer, NODE);
+		}
+		return node;
+	}
+}
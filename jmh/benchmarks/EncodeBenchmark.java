@@ -0,0 +1,59 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a query string into its 2-bit long form, the work of
+ * BTree.stringToLong after its length check.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+	private static final int SEQUENCES = 1024;
+
+	@Param({ "6", "12", "31" })
+	public int sequenceLength;
+
+	private Bridge bridge;
+	private String[] sequences;
+	private int next;
+
+	@Setup
+	public void createSequences() {
+		bridge = Bridge.Loader.load();
+		Random random = new Random(4);
+		sequences = new String[SEQUENCES];
+		char[] bases = new char[sequenceLength];
+		for (int i = 0; i < SEQUENCES; i++) {
+			for (int j = 0; j < sequenceLength; j++) {
+				bases[j] = "acgt".charAt(random.nextInt(4));
+			}
+			sequences[i] = new String(bases);
+		}
+	}
+
+	@Benchmark
+	public long stringToLong() {
+		long encoded = bridge.encode(sequences[next]);
+		next = (next + 1) & (SEQUENCES - 1);
+		return encoded;
+	}
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing throughput of GeneBankCreateBTree.processFile, with the k-mer
+ * encoder but no tree, on a synthetic GenBank file of several records with
+ * the usual ORIGIN layout of 60 bases per line in groups of 10.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+	private static final int RECORDS = 4;
+
+	@Param({ "250000" })
+	public int basesPerRecord;
+
+	@Param({ "12" })
+	public int sequenceLength;
+
+	private Bridge bridge;
+	private File file;
+
+	@Setup
+	public void writeFile() throws IOException {
+		bridge = Bridge.Loader.load();
+		file = File.createTempFile("synthetic", ".gbk");
+		writeGenBank(file, RECORDS, basesPerRecord, new Random(5));
+	}
+
+	@TearDown
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Benchmark
+	public long processFile() {
+		return bridge.parse(file.getPath(), sequenceLength);
+	}
+
+	static void writeGenBank(File file, int records, int bases, Random random) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		for (int r = 0; r < records; r++) {
+			out.write("LOCUS       SYN" + r + "  " + bases + " bp    DNA     linear   SYN 01-JAN-2000\n");
+			out.write("DEFINITION  Synthetic sequence " + r + ".\n");
+			out.write("FEATURES             Location/Qualifiers\n");
+			out.write("     source          1.." + bases + "\n");
+			out.write("ORIGIN      \n");
+			for (int i = 0; i < bases; i += 60) {
+				out.write(String.format("%9d", i + 1));
+				for (int j = i; j < Math.min(i + 60, bases); j++) {
+					if ((j - i) % 10 == 0) {
+						out.write(' ');
+					}
+					int code = random.nextInt(100);
+					out.write(code == 0 ? 'n' : "acgt".charAt(code & 3));
+				}
+				out.write('\n');
+			}
+			out.write("//\n");
+		}
+		out.close();
+	}
+}